@@ -0,0 +1,204 @@
+package com.teradyne.adc.fs;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Package private cache of remote file attributes keyed by path. It holds at most a fixed number of
+ * entries, evicting the least recently used one first, and an entry expires once it is older than the
+ * time to live so that changes made by other clients of the remote host are eventually seen.
+ * Paths found not to exist are remembered as well, with a shorter time to live, so that repeated
+ * existence probes of missing files do not go to the remote host every time.
+ * Changes made through the owning file system invalidate the affected entries right away.
+ * @author wangho
+ *
+ */
+class SSHAttributeCache {
+
+	final static int DEFAULT_MAX_ENTRIES = 10000;
+	final static long DEFAULT_TTL = TimeUnit.SECONDS.toNanos(60);
+	final static long DEFAULT_NEGATIVE_TTL = TimeUnit.SECONDS.toNanos(5);
+
+	private final LinkedHashMap<String, Node> entries = new LinkedHashMap<String, Node>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Node> eldest) {
+			return size() > maxEntries;
+		}
+	};
+	// path -> expiry of the knowledge that it does not exist
+	private final LinkedHashMap<String, Long> missing = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			return size() > maxEntries;
+		}
+	};
+	private int maxEntries = DEFAULT_MAX_ENTRIES;
+	private long ttl = DEFAULT_TTL;
+	private long negativeTtl = DEFAULT_NEGATIVE_TTL;
+
+	private long hits;
+	private long misses;
+	private long negativeHits;
+	private long negativeMisses;
+
+	private static class Node {
+		private final SSHLinuxFileAttributes attributes;
+		private final long expires;
+
+		Node(SSHLinuxFileAttributes attributes, long expires) {
+			this.attributes = attributes;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * @return cached attributes of the path, null if not cached or expired
+	 */
+	synchronized SSHLinuxFileAttributes get(String path) {
+		Node node = entries.get(path);
+		if(node != null && System.nanoTime() - node.expires >= 0) {
+			entries.remove(path);
+			node = null;
+		}
+		if(node == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return node.attributes;
+	}
+
+	synchronized void put(String path, SSHLinuxFileAttributes attributes) {
+		missing.remove(path);
+		if(maxEntries > 0 && ttl > 0) {
+			entries.put(path, new Node(attributes, System.nanoTime() + ttl));
+		}
+	}
+
+	/**
+	 * @return true if the path was recently found not to exist
+	 */
+	synchronized boolean isMissing(String path) {
+		Long expires = missing.get(path);
+		if(expires != null && System.nanoTime() - expires >= 0) {
+			missing.remove(path);
+			expires = null;
+		}
+		if(expires == null) {
+			negativeMisses++;
+			return false;
+		}
+		negativeHits++;
+		return true;
+	}
+
+	/**
+	 * Remember that the path does not exist
+	 */
+	synchronized void putMissing(String path) {
+		entries.remove(path);
+		if(maxEntries > 0 && negativeTtl > 0) {
+			missing.put(path, System.nanoTime() + negativeTtl);
+		}
+	}
+
+	/**
+	 * Forget the path and its parent directory, whose size and times change when an entry is written.
+	 * Any ancestor remembered as missing is forgotten too since writing the path may have created it.
+	 */
+	synchronized void invalidate(String path) {
+		entries.remove(path);
+		String parent = parent(path);
+		if(parent != null) {
+			entries.remove(parent);
+		}
+		for(String p = path; p != null; p = parent(p)) {
+			missing.remove(p);
+		}
+	}
+
+	/**
+	 * Forget the path, everything below it and its parent directory
+	 */
+	synchronized void invalidateTree(String path) {
+		invalidate(path);
+		String prefix = path.endsWith("/") ? path : path + "/";
+		for(Iterator<String> it = entries.keySet().iterator(); it.hasNext();) {
+			if(it.next().startsWith(prefix)) {
+				it.remove();
+			}
+		}
+		for(Iterator<String> it = missing.keySet().iterator(); it.hasNext();) {
+			if(it.next().startsWith(prefix)) {
+				it.remove();
+			}
+		}
+	}
+
+	synchronized void clear() {
+		entries.clear();
+		missing.clear();
+	}
+
+	synchronized void setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+		for(Iterator<String> it = entries.keySet().iterator(); entries.size() > maxEntries && it.hasNext();) {
+			it.next();
+			it.remove();
+		}
+		for(Iterator<String> it = missing.keySet().iterator(); missing.size() > maxEntries && it.hasNext();) {
+			it.next();
+			it.remove();
+		}
+	}
+
+	/**
+	 * Change the time to live, entries cached with the previous one are dropped
+	 */
+	synchronized void setTtl(long duration, TimeUnit unit) {
+		this.ttl = unit.toNanos(duration);
+		entries.clear();
+	}
+
+	/**
+	 * Change the time to live of missing paths, paths remembered with the previous one are dropped
+	 */
+	synchronized void setNegativeTtl(long duration, TimeUnit unit) {
+		this.negativeTtl = unit.toNanos(duration);
+		missing.clear();
+	}
+
+	synchronized SSHCacheStatistics statistics() {
+		return new SSHCacheStatistics(entries.size(), hits, misses, missing.size(), negativeHits, negativeMisses);
+	}
+
+	synchronized int size() {
+		return entries.size();
+	}
+
+	static String parent(String path) {
+		int end = path.length();
+		while(end > 1 && path.charAt(end - 1) == '/') {
+			end--;
+		}
+		int slash = path.lastIndexOf('/', end - 1);
+		if(slash < 0 || end == 1) {
+			return null;
+		}
+		return slash == 0 ? "/" : path.substring(0, slash);
+	}
+
+	static String fileName(String path) {
+		int end = path.length();
+		while(end > 1 && path.charAt(end - 1) == '/') {
+			end--;
+		}
+		return path.substring(path.lastIndexOf('/', end - 1) + 1, end);
+	}
+}
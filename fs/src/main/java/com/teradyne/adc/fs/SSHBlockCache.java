@@ -0,0 +1,251 @@
+package com.teradyne.adc.fs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Package private cache of fixed size blocks of remote files, kept in a memory mapped file of the local
+ * temporary directory. A block is keyed by the remote path together with the modification time and size
+ * of the file, so that a changed file is never served from blocks of its previous content. Resident blocks
+ * are copied straight from the mapping, missing blocks are fetched with a single ranged read, and the least
+ * recently used block is evicted when all slots of the file are taken.
+ * @author wangho
+ *
+ */
+class SSHBlockCache {
+
+	final static int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+	// blocks mapped by a single MappedByteBuffer, which cannot exceed 2GB
+	private final static int BLOCKS_PER_SEGMENT = 1024;
+
+	/**
+	 * Fetches a range of a remote file
+	 */
+	interface Loader {
+		/**
+		 * @return number of bytes read, less than len only at the end of the file
+		 */
+		int read(String path, long offset, byte[] buf, int off, int len) throws IOException;
+	}
+
+	private static final class Key {
+		private final String path;
+		private final FileTime mtime;
+		private final long size;
+		private final long block;
+
+		Key(String path, FileTime mtime, long size, long block) {
+			this.path = path;
+			this.mtime = mtime;
+			this.size = size;
+			this.block = block;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return block == other.block && size == other.size && path.equals(other.path) && Objects.equals(mtime, other.mtime);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(path, mtime, size, block);
+		}
+	}
+
+	private static final class Slot {
+		private final int index;
+		private final int length;
+
+		Slot(int index, int length) {
+			this.index = index;
+			this.length = length;
+		}
+	}
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final MappedByteBuffer[] segments;
+	private final int blockSize;
+	private final int slots;
+	private final LinkedHashMap<Key, Slot> blocks = new LinkedHashMap<>(16, 0.75f, true);
+	private final Deque<Integer> free = new ArrayDeque<>();
+	private boolean closed;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * @param dir local directory of the cache file
+	 * @param capacity size of the cache file in bytes, rounded down to whole blocks
+	 * @param blockSize size of a block in bytes
+	 */
+	SSHBlockCache(String dir, long capacity, int blockSize) throws IOException {
+		this.blockSize = blockSize;
+		this.slots = (int) Math.max(1, Math.min(Integer.MAX_VALUE, capacity / blockSize));
+		this.file = File.createTempFile("ssh-block-cache", ".bin", new File(dir));
+		this.file.deleteOnExit();
+		this.raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength((long) slots * blockSize);
+			FileChannel channel = raf.getChannel();
+			segments = new MappedByteBuffer[(slots + BLOCKS_PER_SEGMENT - 1) / BLOCKS_PER_SEGMENT];
+			for(int i = 0; i < segments.length; i++) {
+				long start = (long) i * BLOCKS_PER_SEGMENT * blockSize;
+				long length = (long) Math.min(BLOCKS_PER_SEGMENT, slots - i * BLOCKS_PER_SEGMENT) * blockSize;
+				segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, length);
+			}
+		} catch (IOException | RuntimeException e) {
+			close();
+			throw e;
+		}
+		for(int i = 0; i < slots; i++) {
+			free.add(i);
+		}
+	}
+
+	/**
+	 * Read from a remote file through the cache
+	 * @param mtime modification time of the remote file
+	 * @param size size of the remote file
+	 * @param position position in the remote file to read at
+	 * @return number of bytes read into dst, -1 if position is at or past the end of the file
+	 */
+	int read(String path, FileTime mtime, long size, long position, ByteBuffer dst, Loader loader) throws IOException {
+		if(position >= size) {
+			return -1;
+		}
+		int total = 0;
+		while(dst.hasRemaining() && position < size) {
+			long block = position / blockSize;
+			int offset = (int) (position - block * blockSize);
+			Key key = new Key(path, mtime, size, block);
+			int n = copy(key, offset, dst);
+			if(n < 0) {
+				// fetched outside of the lock so that reads of resident blocks are not held up by the network
+				int length = (int) Math.min(blockSize, size - block * blockSize);
+				byte[] buf = new byte[length];
+				int read = 0;
+				while(read < length) {
+					int r = loader.read(path, block * blockSize + read, buf, read, length - read);
+					if(r <= 0) {
+						break;
+					}
+					read += r;
+				}
+				if(read <= offset) {
+					// the file shrank since its size was taken
+					break;
+				}
+				store(key, buf, read);
+				n = Math.min(dst.remaining(), read - offset);
+				dst.put(buf, offset, n);
+			}
+			if(n == 0) {
+				break;
+			}
+			total += n;
+			position += n;
+		}
+		return total == 0 ? -1 : total;
+	}
+
+	/**
+	 * Forget all blocks of a path, whatever the modification time and size they were cached with
+	 */
+	synchronized void invalidate(String path) {
+		for(Iterator<Map.Entry<Key, Slot>> it = blocks.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<Key, Slot> entry = it.next();
+			if(entry.getKey().path.equals(path)) {
+				free.add(entry.getValue().index);
+				it.remove();
+			}
+		}
+	}
+
+	synchronized SSHBlockCacheStatistics statistics() {
+		return new SSHBlockCacheStatistics((long) slots * blockSize, blockSize, blocks.size(), hits, misses, evictions);
+	}
+
+	/**
+	 * Release the mapping and delete the cache file
+	 */
+	synchronized void close() {
+		closed = true;
+		blocks.clear();
+		free.clear();
+		try {
+			raf.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
+		// the mapping may keep the file alive until it is garbage collected, it is deleted on exit then
+		file.delete();
+	}
+
+	/**
+	 * @return number of bytes copied from the resident block, -1 if the block is not resident
+	 */
+	private synchronized int copy(Key key, int offset, ByteBuffer dst) {
+		Slot slot = blocks.get(key);
+		if(slot == null) {
+			misses++;
+			return -1;
+		}
+		hits++;
+		int n = Math.min(dst.remaining(), slot.length - offset);
+		if(n > 0) {
+			ByteBuffer src = slice(slot.index);
+			((Buffer) src).position(offset).limit(offset + n);
+			dst.put(src);
+		}
+		return Math.max(n, 0);
+	}
+
+	/**
+	 * Keep a block just fetched, unless the cache was closed by then, a reader which had started before
+	 * still gets its bytes from the buffer
+	 */
+	private synchronized void store(Key key, byte[] buf, int length) {
+		if(closed || blocks.containsKey(key)) {
+			return;
+		}
+		Integer index = free.poll();
+		if(index == null) {
+			if(blocks.isEmpty()) {
+				return;
+			}
+			Iterator<Slot> eldest = blocks.values().iterator();
+			index = eldest.next().index;
+			eldest.remove();
+			evictions++;
+		}
+		ByteBuffer dst = slice(index);
+		dst.put(buf, 0, length);
+		blocks.put(key, new Slot(index, length));
+	}
+
+	private ByteBuffer slice(int index) {
+		ByteBuffer segment = segments[index / BLOCKS_PER_SEGMENT].duplicate();
+		int start = (index % BLOCKS_PER_SEGMENT) * blockSize;
+		((Buffer) segment).position(start).limit(start + blockSize);
+		return segment.slice();
+	}
+}
@@ -0,0 +1,73 @@
+package com.teradyne.adc.fs;
+
+/**
+ * Snapshot of the counters of the block cache of a {@link SSHLinuxFileSystem}
+ * @author wangho
+ *
+ */
+public final class SSHBlockCacheStatistics {
+
+	private final long capacity;
+	private final int blockSize;
+	private final int blocks;
+	private final long hits;
+	private final long misses;
+	private final long evictions;
+
+	SSHBlockCacheStatistics(long capacity, int blockSize, int blocks, long hits, long misses, long evictions) {
+		this.capacity = capacity;
+		this.blockSize = blockSize;
+		this.blocks = blocks;
+		this.hits = hits;
+		this.misses = misses;
+		this.evictions = evictions;
+	}
+
+	/**
+	 * @return size in bytes of the local cache file
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return size in bytes of a cached block
+	 */
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * @return number of blocks currently cached
+	 */
+	public int getBlocks() {
+		return blocks;
+	}
+
+	/**
+	 * @return number of block reads served from the local cache file
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return number of block reads which had to fetch the block from the remote host
+	 */
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return number of blocks evicted to make room for others
+	 */
+	public long getEvictions() {
+		return evictions;
+	}
+
+	@Override
+	public String toString() {
+		return "capacity=" + capacity + " blockSize=" + blockSize + " blocks=" + blocks
+				+ " hits=" + hits + " misses=" + misses + " evictions=" + evictions;
+	}
+}
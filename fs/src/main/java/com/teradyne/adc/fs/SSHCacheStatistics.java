@@ -0,0 +1,73 @@
+package com.teradyne.adc.fs;
+
+/**
+ * Snapshot of the counters of the file attribute cache of a {@link SSHLinuxFileSystem}
+ * @author wangho
+ *
+ */
+public final class SSHCacheStatistics {
+
+	private final int size;
+	private final long hits;
+	private final long misses;
+	private final int negativeSize;
+	private final long negativeHits;
+	private final long negativeMisses;
+
+	SSHCacheStatistics(int size, long hits, long misses, int negativeSize, long negativeHits, long negativeMisses) {
+		this.size = size;
+		this.hits = hits;
+		this.misses = misses;
+		this.negativeSize = negativeSize;
+		this.negativeHits = negativeHits;
+		this.negativeMisses = negativeMisses;
+	}
+
+	/**
+	 * @return number of paths whose attributes are cached
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @return number of lookups served with cached attributes
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return number of lookups which found no cached attributes
+	 */
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return number of paths remembered as not existing
+	 */
+	public int getNegativeSize() {
+		return negativeSize;
+	}
+
+	/**
+	 * @return number of lookups answered as not existing without asking the remote host
+	 */
+	public long getNegativeHits() {
+		return negativeHits;
+	}
+
+	/**
+	 * @return number of lookups of uncached paths not known to be missing, which went to the remote host
+	 */
+	public long getNegativeMisses() {
+		return negativeMisses;
+	}
+
+	@Override
+	public String toString() {
+		return "size=" + size + " hits=" + hits + " misses=" + misses
+				+ " negativeSize=" + negativeSize + " negativeHits=" + negativeHits + " negativeMisses=" + negativeMisses;
+	}
+}
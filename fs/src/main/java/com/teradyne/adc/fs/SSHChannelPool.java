@@ -0,0 +1,118 @@
+package com.teradyne.adc.fs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Package private because it is only used by SSHLinuxFileSystem to bound the
+ * number of channels concurrently open on its single session.
+ * An SSH exec channel can only run one command, so what is pooled here are the
+ * slots of the session (MaxSessions on the server side) rather than channel objects.
+ * Long-lived channels, such as the persistent shell or the SFTP client, reserve their slot
+ * without waiting, and at least one slot is always left to the other channels.
+ * @author wangho
+ *
+ */
+class SSHChannelPool {
+
+	// OpenSSH default of MaxSessions in sshd_config
+	final static int DEFAULT_MAX_CHANNELS = 10;
+
+	/**
+	 * Semaphore whose permits can be taken away without waiting for them
+	 */
+	private static final class Slots extends Semaphore {
+		private static final long serialVersionUID = 1L;
+
+		Slots(int permits) {
+			super(permits, true);
+		}
+
+		void reduce() {
+			reducePermits(1);
+		}
+	}
+
+	private final int capacity;
+	private final Slots slots;
+	private int reserved;
+
+	private final AtomicInteger inUse = new AtomicInteger();
+	private final AtomicInteger peakInUse = new AtomicInteger();
+	private final AtomicLong acquired = new AtomicLong();
+	private final AtomicLong waited = new AtomicLong();
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+
+	SSHChannelPool(int capacity) {
+		if(capacity <= 0) {
+			throw new IllegalArgumentException("Channel pool capacity must be positive: " + capacity);
+		}
+		this.capacity = capacity;
+		this.slots = new Slots(capacity);
+	}
+
+	/**
+	 * Take one channel slot, blocking while all slots of the session are occupied
+	 * @throws InterruptedIOException if interrupted while waiting for a slot
+	 */
+	void acquire() throws InterruptedIOException {
+		if(!slots.tryAcquire()) {
+			long start = System.nanoTime();
+			try {
+				slots.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for a free SSH channel");
+			}
+			long wait = System.nanoTime() - start;
+			waited.incrementAndGet();
+			totalWaitNanos.addAndGet(wait);
+			maxWaitNanos.accumulateAndGet(wait, Math::max);
+		}
+		acquired.incrementAndGet();
+		peakInUse.accumulateAndGet(inUse.incrementAndGet(), Math::max);
+	}
+
+	/**
+	 * Give back a slot taken by {@link #acquire()}
+	 */
+	void release() {
+		inUse.decrementAndGet();
+		slots.release();
+	}
+
+	/**
+	 * Take one slot for a long-lived channel for as long as it is open. The slot is taken without
+	 * waiting: channels running meanwhile finish first, and the next ones wait for them.
+	 * @throws IOException if no slot would be left to the other channels
+	 */
+	synchronized void reserve() throws IOException {
+		if(reserved + 1 >= capacity) {
+			throw new IOException("A pool of " + capacity + " channels leaves none for commands next to "
+					+ (reserved + 1) + " long-lived channels");
+		}
+		reserved++;
+		slots.reduce();
+	}
+
+	/**
+	 * Give back a slot taken by {@link #reserve()}
+	 */
+	synchronized void unreserve() {
+		reserved--;
+		slots.release();
+	}
+
+	int capacity() {
+		return capacity;
+	}
+
+	SSHChannelPoolStatistics statistics() {
+		return new SSHChannelPoolStatistics(capacity, inUse.get(), peakInUse.get(), slots.getQueueLength(),
+				acquired.get(), waited.get(), totalWaitNanos.get(), maxWaitNanos.get());
+	}
+}
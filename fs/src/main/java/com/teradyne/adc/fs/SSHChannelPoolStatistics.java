@@ -0,0 +1,90 @@
+package com.teradyne.adc.fs;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapshot of the occupancy and wait times of the channel pool of a {@link SSHLinuxFileSystem}
+ * @author wangho
+ *
+ */
+public final class SSHChannelPoolStatistics {
+
+	private final int capacity;
+	private final int inUse;
+	private final int peakInUse;
+	private final int waiting;
+	private final long acquired;
+	private final long waited;
+	private final long totalWaitNanos;
+	private final long maxWaitNanos;
+
+	SSHChannelPoolStatistics(int capacity, int inUse, int peakInUse, int waiting,
+			long acquired, long waited, long totalWaitNanos, long maxWaitNanos) {
+		this.capacity = capacity;
+		this.inUse = inUse;
+		this.peakInUse = peakInUse;
+		this.waiting = waiting;
+		this.acquired = acquired;
+		this.waited = waited;
+		this.totalWaitNanos = totalWaitNanos;
+		this.maxWaitNanos = maxWaitNanos;
+	}
+
+	/**
+	 * @return maximum number of channels open at the same time on the session
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return number of channels open right now
+	 */
+	public int getInUse() {
+		return inUse;
+	}
+
+	/**
+	 * @return highest number of channels ever open at the same time
+	 */
+	public int getPeakInUse() {
+		return peakInUse;
+	}
+
+	/**
+	 * @return number of callers currently blocked waiting for a channel
+	 */
+	public int getWaiting() {
+		return waiting;
+	}
+
+	/**
+	 * @return total number of channels handed out
+	 */
+	public long getAcquired() {
+		return acquired;
+	}
+
+	/**
+	 * @return number of times a caller had to wait because the pool was full
+	 */
+	public long getWaited() {
+		return waited;
+	}
+
+	public long getTotalWaitTime(TimeUnit unit) {
+		return unit.convert(totalWaitNanos, TimeUnit.NANOSECONDS);
+	}
+
+	public long getMaxWaitTime(TimeUnit unit) {
+		return unit.convert(maxWaitNanos, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public String toString() {
+		return "capacity=" + capacity + " inUse=" + inUse + " peak=" + peakInUse + " waiting=" + waiting
+				+ " acquired=" + acquired + " waited=" + waited
+				+ " totalWaitMs=" + getTotalWaitTime(TimeUnit.MILLISECONDS)
+				+ " maxWaitMs=" + getMaxWaitTime(TimeUnit.MILLISECONDS);
+	}
+}
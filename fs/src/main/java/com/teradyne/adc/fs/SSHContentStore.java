@@ -0,0 +1,165 @@
+package com.teradyne.adc.fs;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.Locale;
+
+/**
+ * Package private store of localized files keyed by the digest of their content, computed on the remote
+ * host, in <code>.cas/algorithm/ab/digest</code> of the local directory. A localized file whose digest is
+ * already in the store becomes a hard link to it instead of being downloaded, so that identical files at
+ * different paths, or on different hosts localizing into the same directory, are transferred and kept once.
+ * A file is only added to the store if the remote file did not change while it was hashed and downloaded.
+ * <p>
+ * As localized files share their content with the store, a localized file must be given its own copy before
+ * it is written, see {@link SSHLinuxFile#detach()}. The size, modification time and file key of an object
+ * are recorded in <code>digest.seal</code> next to it when it is added, without changing the attributes the
+ * localized files share with it, so that an object written through one of its links all the same is dropped
+ * from the store instead of being linked again.
+ * @author wangho
+ *
+ */
+class SSHContentStore {
+
+	final static String DIRECTORY = ".cas";
+	// suffix of the record of the attributes of an object
+	final static String SEAL = ".seal";
+
+	private final SSHDigests digests;
+	private final Path root;
+
+	SSHContentStore(SSHDigests digests, Path dir) {
+		this.digests = digests;
+		this.root = dir.resolve(DIRECTORY);
+	}
+
+	/**
+	 * Hash a remote file on the remote host
+	 * @return path of the object of the store for the content of the file, which may not exist yet, null if the
+	 * file could not be hashed
+	 */
+	Path object(String remote) throws IOException {
+		SSHDigestAlgorithm algorithm = digests.fastest();
+		String[] digest = new String[1];
+		digests.digests(Collections.singleton(remote), algorithm, (path, value) -> digest[0] = value.toLowerCase(Locale.ROOT));
+		if(digest[0] == null || digest[0].length() < 3) {
+			return null;
+		}
+		return root.resolve(algorithm.name().toLowerCase(Locale.ROOT)).resolve(digest[0].substring(0, 2)).resolve(digest[0]);
+	}
+
+	/**
+	 * Make a local file a hard link to an object of the store, replacing the file if it exists
+	 * @param size size of the remote file, which the object must have
+	 * @return whether the object exists and the file was linked to it
+	 */
+	boolean link(Path object, Path local, long size) throws IOException {
+		Path seal = seal(object);
+		BasicFileAttributes attrs;
+		try {
+			attrs = Files.readAttributes(object, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		} catch (IOException e) {
+			Files.deleteIfExists(seal);
+			return false;
+		}
+		String recorded;
+		try {
+			recorded = new String(Files.readAllBytes(seal), StandardCharsets.UTF_8);
+		} catch (NoSuchFileException e) {
+			recorded = null;
+		}
+		if(!attrs.isRegularFile() || attrs.size() != size || !seal(attrs).equals(recorded)) {
+			// written through one of its links, the files linked to it keep their content
+			Files.deleteIfExists(object);
+			Files.deleteIfExists(seal);
+			return false;
+		}
+		if(Files.exists(local, LinkOption.NOFOLLOW_LINKS) && Files.isSameFile(object, local)) {
+			return true;
+		}
+		Files.createDirectories(local.getParent());
+		Path temp = local.resolveSibling("." + local.getFileName() + ".link");
+		Files.deleteIfExists(temp);
+		try {
+			Files.createLink(temp, object);
+		} catch (IOException | UnsupportedOperationException e) {
+			// evicted meanwhile, or hard links are not supported
+			return false;
+		}
+		Files.move(temp, local, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return true;
+	}
+
+	/**
+	 * Give a local file its own copy of its content if it shares it with other files through hard links
+	 * @param copy whether the content is kept, the file is deleted otherwise
+	 */
+	static void detach(Path local, boolean copy) throws IOException {
+		if(links(local) < 2) {
+			return;
+		}
+		if(!copy) {
+			Files.delete(local);
+			return;
+		}
+		Path temp = local.resolveSibling("." + local.getFileName() + ".detach");
+		Files.copy(local, temp, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+		Files.move(temp, local, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @return record of the attributes of an object, which it keeps until it is written
+	 */
+	static Path seal(Path object) {
+		return object.resolveSibling(object.getFileName() + SEAL);
+	}
+
+	private static String seal(BasicFileAttributes attrs) {
+		return attrs.size() + " " + attrs.lastModifiedTime() + " " + attrs.fileKey();
+	}
+
+	/**
+	 * @return number of hard links of a regular file, 1 if it is missing or they cannot be counted
+	 */
+	private static int links(Path local) {
+		if(!Files.isRegularFile(local, LinkOption.NOFOLLOW_LINKS)) {
+			return 1;
+		}
+		try {
+			return (Integer) Files.getAttribute(local, "unix:nlink", LinkOption.NOFOLLOW_LINKS);
+		} catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+			return 1;
+		}
+	}
+
+	/**
+	 * Add a localized file to the store as a hard link, unless the content is already there, and record the
+	 * attributes of the object
+	 */
+	void add(Path object, Path local) throws IOException {
+		if(Files.exists(object, LinkOption.NOFOLLOW_LINKS)) {
+			return;
+		}
+		Files.createDirectories(object.getParent());
+		Path temp = object.resolveSibling(object.getFileName() + ".link");
+		Files.deleteIfExists(temp);
+		try {
+			Files.createLink(temp, local);
+		} catch (UnsupportedOperationException e) {
+			return;
+		}
+		BasicFileAttributes attrs = Files.readAttributes(temp, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		Path seal = seal(object);
+		Path sealTemp = seal.resolveSibling(seal.getFileName() + ".new");
+		Files.write(sealTemp, seal(attrs).getBytes(StandardCharsets.UTF_8));
+		Files.move(sealTemp, seal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		Files.move(temp, object, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -0,0 +1,372 @@
+package com.teradyne.adc.fs;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Package private upload of a local file over an older copy of it on the remote host, sending only what
+ * differs in the way of rsync. The remote copy is cut into blocks whose checksums are computed on the remote
+ * host, the local file is scanned for those blocks at every offset with a rolling checksum confirmed by MD5,
+ * and the remote host rebuilds the file from copies of its own blocks and the literal bytes in between.
+ * Both remote steps are small <code>perl</code> scripts, the upload falls back to a full transfer where
+ * perl is not available.
+ * <p>
+ * The rolling checksum of a block is the sum of its bytes together with the sum of its bytes mapped through
+ * a fixed permutation, each modulo 2<sup>32</sup>, which perl computes with <code>unpack</code> and
+ * <code>tr</code> at native speed.
+ * @author wangho
+ *
+ */
+class SSHDeltaTransfer {
+
+	private final static int MIN_BLOCK_SIZE = 1024;
+	private final static int MAX_BLOCK_SIZE = 128 * 1024;
+	// largest run of literal bytes sent in a single instruction
+	private final static int MAX_LITERAL = 256 * 1024;
+	private final static int[] PERMUTATION = permutation();
+
+	// prints "<rolling checksum> <md5>" for each block of the file
+	private final static String SIGNATURE_SCRIPT = String.join("\n",
+			"use Digest::MD5 qw(md5_hex);",
+			"my ($B, $path) = @ARGV;",
+			"my ($s, @p) = (1, 0..255);",
+			"for my $i (reverse 1..255) { $s = ($s * 69069 + 1) % 4294967296; my $j = $s % ($i + 1); @p[$i, $j] = @p[$j, $i]; }",
+			"my $t = eval \"sub { \\$_[0] =~ tr/\\\\x00-\\\\xff/\" . join(\"\", map { sprintf \"\\\\x%02x\", $_ } @p) . \"/r }\";",
+			"open(my $f, \"<\", $path) or exit 2; binmode $f;",
+			"while ((my $n = read($f, my $blk, $B)) > 0) { printf \"%08x%08x %s\\n\", unpack(\"%32C*\", $blk), unpack(\"%32C*\", $t->($blk)), md5_hex($blk); }");
+
+	// rebuilds a file from "C<block><count>", "L<length><bytes>" and "E" instructions read from stdin
+	private final static String APPLY_SCRIPT = String.join("\n",
+			"my ($B, $old, $new) = @ARGV;",
+			"open(my $in, \"<\", $old) or exit 2; binmode $in;",
+			"open(my $out, \">\", $new) or exit 3; binmode $out; binmode STDIN;",
+			"sub take { my $n = shift; my $d = \"\"; while (length($d) < $n) { read(STDIN, $d, $n - length($d), length($d)) or exit 4; } return $d; }",
+			"while (read(STDIN, my $op, 1)) {",
+			"  if ($op eq \"C\") { my ($i, $c) = unpack(\"NN\", take(8)); seek($in, $i * $B, 0) or exit 5; my $len = $c * $B;",
+			"    while ($len > 0) { my $r = read($in, my $d, $len < 1048576 ? $len : 1048576) or last; print $out $d or exit 6; $len -= $r; } }",
+			"  elsif ($op eq \"L\") { print $out take(unpack(\"N\", take(4))) or exit 6; }",
+			"  elsif ($op eq \"E\") { close($out) or exit 6; exit 0; }",
+			"  else { exit 7; }",
+			"}",
+			"exit 4;");
+
+	/**
+	 * Checksums of the blocks of the remote copy
+	 */
+	private static final class Signature {
+		private final int blockSize;
+		private final Map<Long, List<Integer>> blocks = new HashMap<>();
+		private final List<String> strong = new ArrayList<>();
+		private int lastLength;
+
+		Signature(int blockSize) {
+			this.blockSize = blockSize;
+		}
+	}
+
+	private final SSHLinuxFileSystem fs;
+	// whether the remote host has a perl able to run the scripts, asked once
+	private volatile Boolean supported;
+
+	SSHDeltaTransfer(SSHLinuxFileSystem fs) {
+		this.fs = fs;
+	}
+
+	/**
+	 * Upload a local file over the existing remote file, which is replaced atomically once the rebuilt file
+	 * matches the size and MD5 digest of the local file
+	 * @param remote path of the remote file, not of its directory
+	 * @param remoteSize size of the remote file
+	 * @return false if nothing was changed because a delta cannot be applied to this file, it has to be
+	 * uploaded in full then
+	 * @throws IOException if the rebuilt file could not be written
+	 */
+	boolean upload(File local, String remote, long remoteSize) throws IOException {
+		if(!isSupported()) {
+			return false;
+		}
+		Signature signature = signature(remote, blockSize(remoteSize), remoteSize);
+		if(signature == null) {
+			return false;
+		}
+		String parent = SSHAttributeCache.parent(remote);
+		String temp = (parent == null ? "" : parent.equals("/") ? "/" : parent + "/") + "." + SSHAttributeCache.fileName(remote)
+				+ "." + UUID.randomUUID().toString().substring(0, 8) + ".part";
+		String quotedTemp = SSHLinuxFileSystem.quote(temp);
+		String quotedRemote = SSHLinuxFileSystem.quote(remote);
+		boolean renamed = false;
+		try {
+			String expected;
+			try (SSHRemoteProcess process = fs.open("{ perl -e " + SSHLinuxFileSystem.quote(APPLY_SCRIPT) + " " + signature.blockSize
+					+ " " + quotedRemote + " " + quotedTemp + "\n} 2>/dev/null", null)) {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream(), 64 * 1024));
+				expected = send(local, signature, out);
+				out.close();
+				int status = process.waitFor();
+				if(status != 0) {
+					throw new IOException("Failed to apply delta of " + local + " to " + temp + ", exit status " + status);
+				}
+			}
+			String[] result = fs.run("stat -c %s -- " + quotedTemp + " && md5sum < " + quotedTemp, "verify " + temp).trim().split("\\s+");
+			if(result.length < 2 || !result[0].equals(String.valueOf(local.length())) || !result[1].equalsIgnoreCase(expected)) {
+				// the remote file changed while the delta was computed
+				return false;
+			}
+			// keep the permissions of the file being replaced
+			fs.run("{ test ! -e " + quotedRemote + " || chmod --reference=" + quotedRemote + " -- " + quotedTemp + "; } && mv -f -- "
+					+ quotedTemp + " " + quotedRemote, "rename " + temp + " to " + remote);
+			renamed = true;
+			return true;
+		} finally {
+			if(!renamed) {
+				try {
+					fs.run("rm -f -- " + quotedTemp, "remove " + temp);
+				} catch (IOException e) {
+					// the failure of the upload is reported
+				}
+			}
+			fs.invalidate(temp);
+			fs.invalidate(remote);
+		}
+	}
+
+	/**
+	 * @return whether perl is installed on the remote host, with Digest::MD5, and recent enough for the
+	 * <code>tr///r</code> of the scripts, which came with 5.14
+	 */
+	private boolean isSupported() throws IOException {
+		Boolean result = supported;
+		if(result == null) {
+			result = fs.run("perl -e 'require 5.014; require Digest::MD5; print q(yes)' || :", "probe perl").trim().equals("yes");
+			supported = result;
+		}
+		return result;
+	}
+
+	/**
+	 * Block size growing with the square root of the file size like rsync, so that the number of checksums
+	 * and the bytes resent around a change stay balanced
+	 */
+	static int blockSize(long size) {
+		long root = (long) Math.sqrt((double) size);
+		long rounded = (root + MIN_BLOCK_SIZE - 1) / MIN_BLOCK_SIZE * MIN_BLOCK_SIZE;
+		return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, rounded));
+	}
+
+	/**
+	 * @return checksums of the blocks of the remote file, null if they cannot be computed
+	 */
+	private Signature signature(String remote, int blockSize, long size) throws IOException {
+		Signature signature = new Signature(blockSize);
+		try (SSHRemoteProcess process = fs.open("{ perl -e " + SSHLinuxFileSystem.quote(SIGNATURE_SCRIPT) + " " + blockSize
+				+ " " + SSHLinuxFileSystem.quote(remote) + "\n} 2>/dev/null", null)) {
+			process.getOutputStream().close();
+			BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.US_ASCII));
+			String line;
+			while((line = reader.readLine()) != null) {
+				if(line.length() != 16 + 1 + 32) {
+					return null;
+				}
+				long weak = Long.parseUnsignedLong(line.substring(0, 16), 16);
+				signature.blocks.computeIfAbsent(weak, k -> new ArrayList<>(1)).add(signature.strong.size());
+				signature.strong.add(line.substring(17));
+			}
+			if(process.waitFor() != 0) {
+				return null;
+			}
+		}
+		signature.lastLength = (int) (size - (long) (signature.strong.size() - 1) * blockSize);
+		return signature;
+	}
+
+	/**
+	 * Scan the local file for blocks of the remote file and send the instructions rebuilding it
+	 * @return MD5 digest of the local file
+	 */
+	private static String send(File local, Signature signature, DataOutputStream out) throws IOException {
+		int blockSize = signature.blockSize;
+		int blocks = signature.strong.size();
+		MessageDigest whole = SSHParallelTransfer.newMD5();
+		MessageDigest md = SSHParallelTransfer.newMD5();
+		Instructions instructions = new Instructions(out, whole);
+		byte[] buf = new byte[Math.max(4 * blockSize, 1024 * 1024)];
+		int filled = 0;
+		int start = 0;
+		boolean eof = false;
+		boolean rolling = false;
+		long a = 0;
+		long b = 0;
+		try (InputStream in = new FileInputStream(local)) {
+			while(true) {
+				if(filled - start < blockSize && !eof) {
+					// literal bytes before the window are sent before they are dropped from the buffer
+					instructions.literal(buf, instructions.literalStart, start);
+					System.arraycopy(buf, start, buf, 0, filled - start);
+					filled -= start;
+					start = 0;
+					instructions.literalStart = 0;
+					rolling = false;
+					int n;
+					while(filled < buf.length && (n = in.read(buf, filled, buf.length - filled)) > 0) {
+						filled += n;
+					}
+					eof = filled < buf.length;
+					continue;
+				}
+				if(filled - start < blockSize) {
+					break;
+				}
+				if(!rolling) {
+					a = 0;
+					b = 0;
+					for(int i = start; i < start + blockSize; i++) {
+						int x = buf[i] & 0xff;
+						a += x;
+						b += PERMUTATION[x];
+					}
+					rolling = true;
+				}
+				int match = -1;
+				List<Integer> candidates = signature.blocks.get(((a & 0xffffffffL) << 32) | (b & 0xffffffffL));
+				if(candidates != null) {
+					md.update(buf, start, blockSize);
+					String strong = SSHParallelTransfer.hex(md.digest());
+					int next = instructions.nextBlock();
+					for(int candidate : candidates) {
+						if(isFull(signature, candidate) && signature.strong.get(candidate).equals(strong) && (match < 0 || candidate == next)) {
+							match = candidate;
+						}
+					}
+				}
+				if(match >= 0) {
+					instructions.literal(buf, instructions.literalStart, start);
+					instructions.copy(match, buf, start, blockSize);
+					start += blockSize;
+					instructions.literalStart = start;
+					rolling = false;
+				} else {
+					int x = buf[start] & 0xff;
+					if(start + blockSize < filled) {
+						int y = buf[start + blockSize] & 0xff;
+						a += y - x;
+						b += PERMUTATION[y] - PERMUTATION[x];
+					} else {
+						rolling = false;
+					}
+					start++;
+					if(start - instructions.literalStart >= MAX_LITERAL) {
+						instructions.literal(buf, instructions.literalStart, start);
+						instructions.literalStart = start;
+					}
+				}
+			}
+		}
+		// the end of the file may still be the short last block of the remote file
+		int tail = filled - start;
+		if(tail > 0 && blocks > 0 && tail == signature.lastLength) {
+			md.update(buf, start, tail);
+			if(signature.strong.get(blocks - 1).equals(SSHParallelTransfer.hex(md.digest()))) {
+				instructions.literal(buf, instructions.literalStart, start);
+				instructions.copy(blocks - 1, buf, start, tail);
+				instructions.literalStart = filled;
+			}
+		}
+		instructions.literal(buf, instructions.literalStart, filled);
+		instructions.flush();
+		out.writeByte('E');
+		return SSHParallelTransfer.hex(whole.digest());
+	}
+
+	/**
+	 * @return whether a block of the remote file has the full block size, which all but the last one have
+	 */
+	private static boolean isFull(Signature signature, int block) {
+		return block < signature.strong.size() - 1 || signature.lastLength == signature.blockSize;
+	}
+
+	/**
+	 * Writes the instructions, merging copies of consecutive blocks into one
+	 */
+	private static final class Instructions {
+		private final DataOutputStream out;
+		private final MessageDigest whole;
+		private int copyBlock = -1;
+		private int copyCount;
+		private int literalStart;
+
+		Instructions(DataOutputStream out, MessageDigest whole) {
+			this.out = out;
+			this.whole = whole;
+		}
+
+		/**
+		 * @return block following the copied ones, which is the most likely next match
+		 */
+		int nextBlock() {
+			return copyCount > 0 ? copyBlock + copyCount : -1;
+		}
+
+		void copy(int block, byte[] buf, int off, int len) throws IOException {
+			whole.update(buf, off, len);
+			if(copyCount > 0 && block == copyBlock + copyCount) {
+				copyCount++;
+				return;
+			}
+			flush();
+			copyBlock = block;
+			copyCount = 1;
+		}
+
+		void literal(byte[] buf, int from, int to) throws IOException {
+			if(to <= from) {
+				return;
+			}
+			flush();
+			whole.update(buf, from, to - from);
+			out.writeByte('L');
+			out.writeInt(to - from);
+			out.write(buf, from, to - from);
+		}
+
+		void flush() throws IOException {
+			if(copyCount > 0) {
+				out.writeByte('C');
+				out.writeInt(copyBlock);
+				out.writeInt(copyCount);
+				copyCount = 0;
+			}
+		}
+	}
+
+	/**
+	 * Same permutation of the byte values as the signature script
+	 */
+	private static int[] permutation() {
+		int[] p = new int[256];
+		for(int i = 0; i < p.length; i++) {
+			p[i] = i;
+		}
+		long s = 1;
+		for(int i = 255; i >= 1; i--) {
+			s = (s * 69069 + 1) & 0xffffffffL;
+			int j = (int) (s % (i + 1));
+			int t = p[i];
+			p[i] = p[j];
+			p[j] = t;
+		}
+		return p;
+	}
+}
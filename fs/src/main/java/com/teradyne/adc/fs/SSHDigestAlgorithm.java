@@ -0,0 +1,29 @@
+package com.teradyne.adc.fs;
+
+/**
+ * Digest algorithms of remote file hashing, each computed by its command line tool on the remote host.
+ * They are declared from the fastest to the slowest, the order in which
+ * {@link SSHLinuxFileSystem.Utils#getDigestAlgorithm()} looks for the tools.
+ * @author wangho
+ *
+ */
+public enum SSHDigestAlgorithm {
+	BLAKE3("b3sum"),
+	XXH128("xxh128sum"),
+	SHA1("sha1sum"),
+	MD5("md5sum"),
+	SHA256("sha256sum");
+
+	private final String command;
+
+	SSHDigestAlgorithm(String command) {
+		this.command = command;
+	}
+
+	/**
+	 * @return name of the tool printing the digests of the files given as arguments
+	 */
+	public String getCommand() {
+		return command;
+	}
+}
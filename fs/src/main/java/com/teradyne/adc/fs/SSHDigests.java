@@ -0,0 +1,269 @@
+package com.teradyne.adc.fs;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Package private hashing of many remote files with two remote commands whatever their number. The size
+ * and modification time of the files are listed by a single <code>find</code>, then the files whose digest
+ * is not cached for that size and modification time are fed through stdin to <code>xargs</code>, which
+ * hashes them with one worker per processor of the remote host, and the digests are handed out as they
+ * stream back. A digest is cached per path, algorithm, size and modification time, so that files which did
+ * not change are not hashed again.
+ * @author wangho
+ *
+ */
+class SSHDigests {
+
+	final static int DEFAULT_MAX_ENTRIES = 500000;
+
+	// files hashed by one invocation of the hashing tool
+	private final static int FILES_PER_WORKER = 64;
+	private final static String STAT_FORMAT = "%s\\0%T@\\0%p\\0";
+
+	private static final class Entry {
+		private final String size;
+		private final String mtime;
+		private final SSHDigestAlgorithm algorithm;
+		private final String digest;
+
+		Entry(String size, String mtime, SSHDigestAlgorithm algorithm, String digest) {
+			this.size = size;
+			this.mtime = mtime;
+			this.algorithm = algorithm;
+			this.digest = digest;
+		}
+	}
+
+	/**
+	 * Size and modification time of a file as printed by find
+	 */
+	private static final class Stat {
+		private final String path;
+		private final String size;
+		private final String mtime;
+
+		Stat(String path, String size, String mtime) {
+			this.path = path;
+			this.size = size;
+			this.mtime = mtime;
+		}
+	}
+
+	private final SSHLinuxFileSystem fs;
+	private final LinkedHashMap<String, Entry> cache = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return size() > maxEntries;
+		}
+	};
+	private int maxEntries = DEFAULT_MAX_ENTRIES;
+	private volatile SSHDigestAlgorithm fastest;
+
+	SSHDigests(SSHLinuxFileSystem fs) {
+		this.fs = fs;
+	}
+
+	synchronized void setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+		Iterator<String> eldest = cache.keySet().iterator();
+		while(cache.size() > Math.max(maxEntries, 0) && eldest.hasNext()) {
+			eldest.next();
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * @return fastest algorithm whose tool is installed on the remote host, looked up once
+	 */
+	SSHDigestAlgorithm fastest() throws IOException {
+		SSHDigestAlgorithm algorithm = fastest;
+		if(algorithm == null) {
+			StringBuilder cmd = new StringBuilder("for t in");
+			for(SSHDigestAlgorithm a : SSHDigestAlgorithm.values()) {
+				cmd.append(' ').append(a.getCommand());
+			}
+			cmd.append("; do command -v $t >/dev/null && { echo $t; exit 0; }; done; exit 1");
+			String found = fs.run(cmd.toString(), "find a digest tool").trim();
+			for(SSHDigestAlgorithm a : SSHDigestAlgorithm.values()) {
+				if(a.getCommand().equals(found)) {
+					algorithm = a;
+				}
+			}
+			if(algorithm == null) {
+				throw new IOException("No digest tool found");
+			}
+			fastest = algorithm;
+		}
+		return algorithm;
+	}
+
+	/**
+	 * Hash regular files, paths which do not exist or are not regular files are left out
+	 * @param consumer receives each path with its digest in hexadecimal, cached digests first
+	 */
+	void digests(Collection<String> paths, SSHDigestAlgorithm algorithm, BiConsumer<String, String> consumer) throws IOException {
+		ByteArrayOutputStream stdin = new ByteArrayOutputStream();
+		Map<String, String> requested = new HashMap<>();
+		for(String path : new LinkedHashSet<>(paths)) {
+			// find would take a path starting with a dash for an expression
+			String arg = path.startsWith("-") ? "./" + path : path;
+			requested.put(arg, path);
+			stdin.write(arg.getBytes(StandardCharsets.UTF_8));
+			stdin.write(0);
+		}
+		if(requested.isEmpty()) {
+			return;
+		}
+		List<Stat> files = stat(buffered("xargs -0 sh -c 'find \"$@\" -maxdepth 0 -type f -printf \"" + STAT_FORMAT + "\"' sh"), stdin.toByteArray(), null);
+		List<Stat> renamed = new ArrayList<>(files.size());
+		for(Stat file : files) {
+			renamed.add(new Stat(requested.getOrDefault(file.path, file.path), file.size, file.mtime));
+		}
+		hash(renamed, algorithm, consumer);
+	}
+
+	/**
+	 * Hash all regular files below a directory
+	 * @param consumer receives the path of each file with its digest in hexadecimal, cached digests first
+	 * @throws NoSuchFileException if the directory does not exist
+	 */
+	void treeDigests(String dir, SSHDigestAlgorithm algorithm, BiConsumer<String, String> consumer) throws IOException {
+		String quoted = SSHLinuxFileSystem.quote(dir);
+		hash(stat("test -d " + quoted + " || exit 2; find " + quoted + " -type f -printf '" + STAT_FORMAT + "'", null, dir), algorithm, consumer);
+	}
+
+	/**
+	 * @param dir directory listed by the command, reported missing if the command exits with 2
+	 */
+	private List<Stat> stat(String cmd, byte[] stdin, String dir) throws IOException {
+		List<Stat> files = new ArrayList<>();
+		try (SSHRemoteProcess process = fs.open("{ " + cmd + "\n} 2>/dev/null", stdin == null ? null : new ByteArrayInputStream(stdin))) {
+			if(stdin == null) {
+				process.getOutputStream().close();
+			}
+			SSHLinuxStat.RecordReader reader = new SSHLinuxStat.RecordReader(process.getInputStream());
+			String size;
+			String mtime;
+			String path;
+			while((size = reader.next()) != null && (mtime = reader.next()) != null && (path = reader.next()) != null) {
+				files.add(new Stat(path, size, mtime));
+			}
+			int status = process.waitFor();
+			if(status == 2 && dir != null) {
+				throw new NoSuchFileException(dir);
+			}
+			// xargs exits with 123 if find did not find some of the paths
+			if(status != 0 && status != 123 && !(status == 1 && dir != null)) {
+				throw new IOException("Failed to list files to hash, exit status " + status);
+			}
+		}
+		return files;
+	}
+
+	private void hash(List<Stat> files, SSHDigestAlgorithm algorithm, BiConsumer<String, String> consumer) throws IOException {
+		Map<String, Stat> pending = new HashMap<>();
+		ByteArrayOutputStream stdin = new ByteArrayOutputStream();
+		for(Stat file : files) {
+			String digest = cached(file, algorithm);
+			if(digest != null) {
+				consumer.accept(file.path, digest);
+			} else if(pending.put(file.path, file) == null) {
+				stdin.write(file.path.getBytes(StandardCharsets.UTF_8));
+				stdin.write(0);
+			}
+		}
+		if(pending.isEmpty()) {
+			return;
+		}
+		// each line is written at once so that the lines of the workers are not mixed up
+		String cmd = "P=$(nproc 2>/dev/null || echo 4); if command -v stdbuf >/dev/null; then S='stdbuf -oL'; else S=; P=1; fi; "
+				+ buffered("xargs -0 -r -P $P -n " + FILES_PER_WORKER + " $S " + algorithm.getCommand() + " --");
+		try (SSHRemoteProcess process = fs.open("{ " + cmd + "\n} 2>/dev/null", new ByteArrayInputStream(stdin.toByteArray()))) {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+			String line;
+			while((line = reader.readLine()) != null) {
+				String[] parsed = parse(line);
+				Stat file = parsed == null ? null : pending.get(parsed[1]);
+				if(file != null) {
+					put(file, algorithm, parsed[0]);
+					consumer.accept(file.path, parsed[0]);
+				}
+			}
+			int status = process.waitFor();
+			// xargs exits with 123 if a file could not be hashed, it is left out
+			if(status != 0 && status != 123) {
+				throw new IOException("Failed to hash files with " + algorithm.getCommand() + ", exit status " + status);
+			}
+		}
+	}
+
+	/**
+	 * @return command reading its stdin in full into a temporary file before running, so that a server pumping
+	 * stdin and stdout of a command in a single thread is not blocked writing one while the command waits
+	 * on the other
+	 */
+	private static String buffered(String cmd) {
+		return "L=$(mktemp) || exit 1; trap 'rm -f \"$L\"' EXIT; cat > \"$L\"; " + cmd + " < \"$L\"";
+	}
+
+	/**
+	 * Parse a line "digest  path" of the hashing tools, whose path has its backslashes and newlines escaped
+	 * if the line starts with a backslash
+	 * @return digest and path, null if the line cannot be parsed
+	 */
+	static String[] parse(String line) {
+		boolean escaped = line.startsWith("\\");
+		int space = line.indexOf(' ');
+		if(space < 0 || space + 2 > line.length()) {
+			return null;
+		}
+		String digest = line.substring(escaped ? 1 : 0, space);
+		// a second space, or a star for binary mode
+		String path = line.substring(space + 2);
+		if(escaped) {
+			StringBuilder sb = new StringBuilder(path.length());
+			for(int i = 0; i < path.length(); i++) {
+				char c = path.charAt(i);
+				if(c == '\\' && i + 1 < path.length()) {
+					char next = path.charAt(++i);
+					sb.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+				} else {
+					sb.append(c);
+				}
+			}
+			path = sb.toString();
+		}
+		return new String[] { digest, path };
+	}
+
+	private synchronized String cached(Stat file, SSHDigestAlgorithm algorithm) {
+		Entry entry = cache.get(file.path);
+		if(entry != null && entry.algorithm == algorithm && entry.size.equals(file.size) && entry.mtime.equals(file.mtime)) {
+			return entry.digest;
+		}
+		return null;
+	}
+
+	private synchronized void put(Stat file, SSHDigestAlgorithm algorithm, String digest) {
+		if(maxEntries > 0) {
+			cache.put(file.path, new Entry(file.size, file.mtime, algorithm, digest));
+		}
+	}
+}
@@ -5,19 +5,23 @@ import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 public class SSHFileOutputStream extends FileOutputStream {
 
 	private File f = null;
 	private Object closelock = new Object();
+	private CompletableFuture<Void> commit = null;
 	
 	public SSHFileOutputStream(File file, boolean append) throws FileNotFoundException {
-		super(file, append);
+		super(detach(file), append);
 		this.f = file;
 	}
 
 	public SSHFileOutputStream(File file) throws FileNotFoundException {
-		super(file);
+		super(detach(file));
 		this.f = file;
 	}
 
@@ -33,6 +37,22 @@ public class SSHFileOutputStream extends FileOutputStream {
 		super(name);
 	}
 
+	/**
+	 * A localized file sharing its content with the content store is given its own copy before it is opened
+	 */
+	private static File detach(File file) throws FileNotFoundException {
+		if(file instanceof SSHLinuxFile) {
+			try {
+				((SSHLinuxFile)file).detach();
+			} catch (IOException e) {
+				FileNotFoundException fnfe = new FileNotFoundException(file + " (cannot be detached from the content store)");
+				fnfe.initCause(e);
+				throw fnfe;
+			}
+		}
+		return file;
+	}
+
 	/**
 	 * Will automatically commit this file to remote via SSH
 	 */
@@ -40,10 +60,36 @@ public class SSHFileOutputStream extends FileOutputStream {
 	public void close() throws IOException {
 		synchronized (closelock) {
 			super.close();
-			if(this.f != null && this.f instanceof SSHLinuxFile) {
-				((SSHLinuxFile)this.f).commit(true);
+			if(this.f != null && this.f instanceof SSHLinuxFile && this.commit == null) {
+				this.commit = ((SSHLinuxFile)this.f).commitAsync(true);
 			}
 		}
 	}
+
+	/**
+	 * Wait until the file written and closed is uploaded, which only takes time if write-back is on, see
+	 * {@link SSHLinuxFileSystem#setWriteBack(int, long, java.util.concurrent.TimeUnit)}
+	 * @throws IOException if the upload failed, or the stream is not closed yet
+	 */
+	public void sync() throws IOException {
+		CompletableFuture<Void> commit;
+		synchronized (closelock) {
+			commit = this.commit;
+		}
+		if(commit == null) {
+			if(this.f instanceof SSHLinuxFile) {
+				throw new IOException("Stream of " + this.f + " is not closed");
+			}
+			return;
+		}
+		try {
+			commit.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for the upload of " + this.f);
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+	}
 	
 }
@@ -0,0 +1,83 @@
+package com.teradyne.adc.fs;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+
+/**
+ * Package private stream of the content of a remote file as printed by <code>cat</code> on its own exec
+ * channel. Bytes are handed out as they arrive and the channel window bounds what is buffered, so memory
+ * stays constant whatever the size of the file and the first byte is available after one round trip.
+ * The exit status of the command is checked at the end of the file, a missing file is thus reported by
+ * the first read rather than when the stream is created.
+ * @author wangho
+ *
+ */
+class SSHInputStream extends FilterInputStream {
+
+	// exit status of the command if the file does not exist
+	private final static int NO_SUCH_FILE = 2;
+
+	private final SSHRemoteProcess process;
+	private final String path;
+	private boolean eof;
+
+	SSHInputStream(SSHRemoteProcess process, String path) {
+		super(process.getInputStream());
+		this.process = process;
+		this.path = path;
+	}
+
+	/**
+	 * @return command printing the file, exiting with {@link #NO_SUCH_FILE} if it does not exist
+	 */
+	static String command(String path) {
+		String quoted = SSHLinuxFileSystem.quote(path);
+		return "test -e " + quoted + " || exit " + NO_SUCH_FILE + "; exec cat -- " + quoted + " 2>/dev/null";
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if(b < 0) {
+			finish();
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = super.read(b, off, len);
+		if(n < 0) {
+			finish();
+		}
+		return n;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	/**
+	 * Close the channel, the command is killed if the file was not read to the end
+	 */
+	@Override
+	public void close() {
+		process.close();
+	}
+
+	private void finish() throws IOException {
+		if(eof) {
+			return;
+		}
+		eof = true;
+		int status = process.waitFor();
+		if(status == NO_SUCH_FILE) {
+			throw new NoSuchFileException(path);
+		}
+		if(status != 0) {
+			throw new IOException("Failed to read " + path + ", exit status " + status);
+		}
+	}
+}
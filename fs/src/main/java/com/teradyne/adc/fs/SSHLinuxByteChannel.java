@@ -0,0 +1,175 @@
+package com.teradyne.adc.fs;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+
+/**
+ * Package private seekable channel on a remote file. Every read and write transfers only the bytes asked
+ * for at the current position, through SFTP offset I/O or <code>dd</code> on an exec channel, so that
+ * a few bytes can be looked up in a large remote file without downloading it.
+ * Each call is a round trip unless the block cache of the file system is enabled, callers doing many small
+ * reads should otherwise read larger buffers.
+ * @author wangho
+ *
+ */
+class SSHLinuxByteChannel implements SeekableByteChannel {
+
+	// largest range transferred by a single read or write
+	private final static int MAX_TRANSFER = 1024 * 1024;
+
+	private final SSHLinuxFileSystem fs;
+	private final String path;
+	private final boolean readable;
+	private final boolean writable;
+	private final boolean append;
+	private long position;
+	private volatile boolean open = true;
+
+	SSHLinuxByteChannel(SSHLinuxFileSystem fs, String path, Set<? extends OpenOption> options) throws IOException {
+		this.fs = fs;
+		this.path = path;
+		this.append = options.contains(StandardOpenOption.APPEND);
+		this.writable = append || options.contains(StandardOpenOption.WRITE);
+		this.readable = options.contains(StandardOpenOption.READ) || !writable;
+		if(append && options.contains(StandardOpenOption.READ)) {
+			throw new IllegalArgumentException("READ + APPEND not allowed");
+		}
+
+		if(writable) {
+			// whether the file exists decides what is done with it, so do not trust the cache
+			fs.invalidate(path);
+		}
+		boolean exists;
+		try {
+			fs.getFileAttributes(fs.getPath(path), false);
+			exists = true;
+		} catch (NoSuchFileException e) {
+			exists = false;
+		}
+		if(writable && options.contains(StandardOpenOption.CREATE_NEW)) {
+			if(exists) {
+				throw new FileAlreadyExistsException(path);
+			}
+			fs.getFileAttributes(fs.getPath(path), true);
+		} else if(!exists) {
+			if(!writable || !options.contains(StandardOpenOption.CREATE)) {
+				throw new NoSuchFileException(path);
+			}
+			fs.getFileAttributes(fs.getPath(path), true);
+		} else if(writable && !append && options.contains(StandardOpenOption.TRUNCATE_EXISTING)) {
+			fs.truncate(path, 0);
+		}
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public void close() {
+		open = false;
+	}
+
+	@Override
+	public synchronized int read(ByteBuffer dst) throws IOException {
+		ensureOpen();
+		if(!readable) {
+			throw new NonReadableChannelException();
+		}
+		int len = Math.min(dst.remaining(), MAX_TRANSFER);
+		if(len == 0) {
+			return 0;
+		}
+		ByteBuffer window = dst.duplicate();
+		((Buffer) window).limit(window.position() + len);
+		int n = fs.read(path, position, window);
+		if(n > 0) {
+			((Buffer) dst).position(dst.position() + n);
+			position += n;
+		}
+		return n;
+	}
+
+	@Override
+	public synchronized int write(ByteBuffer src) throws IOException {
+		ensureOpen();
+		if(!writable) {
+			throw new NonWritableChannelException();
+		}
+		if(append) {
+			position = size();
+		}
+		int len = Math.min(src.remaining(), MAX_TRANSFER);
+		if(src.hasArray()) {
+			fs.writeRange(path, position, src.array(), src.arrayOffset() + src.position(), len);
+			((Buffer) src).position(src.position() + len);
+		} else {
+			byte[] buf = new byte[len];
+			src.get(buf);
+			fs.writeRange(path, position, buf, 0, len);
+		}
+		position += len;
+		return len;
+	}
+
+	@Override
+	public synchronized long position() throws IOException {
+		ensureOpen();
+		return position;
+	}
+
+	@Override
+	public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+		ensureOpen();
+		if(newPosition < 0) {
+			throw new IllegalArgumentException("Negative position");
+		}
+		position = newPosition;
+		return this;
+	}
+
+	/**
+	 * @return current size of the remote file, fetched again since it may be changed by other writers
+	 */
+	@Override
+	public long size() throws IOException {
+		ensureOpen();
+		fs.invalidate(path);
+		return fs.getFileAttributes(fs.getPath(path), false).size();
+	}
+
+	@Override
+	public synchronized SeekableByteChannel truncate(long size) throws IOException {
+		ensureOpen();
+		if(size < 0) {
+			throw new IllegalArgumentException("Negative size");
+		}
+		if(!writable) {
+			throw new NonWritableChannelException();
+		}
+		if(size < size()) {
+			fs.truncate(path, size);
+		}
+		if(position > size) {
+			position = size;
+		}
+		return this;
+	}
+
+	private void ensureOpen() throws IOException {
+		if(!open) {
+			throw new ClosedChannelException();
+		}
+	}
+}
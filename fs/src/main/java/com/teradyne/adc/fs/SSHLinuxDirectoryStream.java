@@ -0,0 +1,237 @@
+package com.teradyne.adc.fs;
+
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.sshd.client.subsystem.sftp.SftpClient.CloseableHandle;
+import org.apache.sshd.client.subsystem.sftp.SftpClient.DirEntry;
+
+/**
+ * Package private stream of the entries of a remote directory. The entries are read incrementally from a
+ * single remote listing, <code>find -printf</code> on an exec channel or SFTP readdir, so that directories
+ * of any size are iterated in constant memory. The attributes of every entry come with the same reply and
+ * are put into the attribute cache of the file system, a following lookup of an entry is thus free.
+ * @author wangho
+ *
+ */
+class SSHLinuxDirectoryStream implements DirectoryStream<Path> {
+
+	/**
+	 * Incremental source of the entries of the directory
+	 */
+	interface Listing {
+		/**
+		 * @return next entry with its name relative to the directory, null once all were read
+		 */
+		SSHLinuxStat.Entry next() throws IOException;
+
+		void close();
+	}
+
+	private final SSHLinuxFileSystem fs;
+	private final SSHLinuxPath dir;
+	private final DirectoryStream.Filter<? super Path> filter;
+	private final Listing listing;
+	private boolean iterated;
+	private boolean closed;
+
+	SSHLinuxDirectoryStream(SSHLinuxFileSystem fs, SSHLinuxPath dir, DirectoryStream.Filter<? super Path> filter, Listing listing) {
+		this.fs = fs;
+		this.dir = dir;
+		this.filter = filter;
+		this.listing = listing;
+	}
+
+	@Override
+	public synchronized Iterator<Path> iterator() {
+		if(closed) {
+			throw new IllegalStateException("Directory stream is closed");
+		}
+		if(iterated) {
+			throw new IllegalStateException("Iterator already obtained");
+		}
+		iterated = true;
+		return new Iterator<Path>() {
+			private Path next;
+
+			@Override
+			public boolean hasNext() {
+				if(next != null) {
+					return true;
+				}
+				next = readNext();
+				return next != null;
+			}
+
+			@Override
+			public Path next() {
+				if(!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				Path result = next;
+				next = null;
+				return result;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	private Path readNext() {
+		synchronized (this) {
+			if(closed) {
+				return null;
+			}
+		}
+		try {
+			for(;;) {
+				SSHLinuxStat.Entry entry = listing.next();
+				if(entry == null) {
+					return null;
+				}
+				Path child = dir.resolve(entry.path);
+				fs.cacheAttributes(child.toString(), entry.attributes);
+				if(filter == null || filter.accept(child)) {
+					return child;
+				}
+			}
+		} catch (IOException e) {
+			throw new DirectoryIteratorException(e);
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		if(!closed) {
+			closed = true;
+			listing.close();
+		}
+	}
+
+	/**
+	 * Listing streamed from <code>find -printf</code>, the channel window throttles find while the caller
+	 * is not iterating. The command first reports whether the path is a readable directory, so that a path
+	 * which is not one fails when the stream is opened.
+	 */
+	static class FindListing implements Listing {
+		private final SSHRemoteProcess process;
+		private final SSHLinuxStat.RecordReader reader;
+		private final String dir;
+		private boolean empty = true;
+
+		/**
+		 * @throws NotDirectoryException if the path is not a directory
+		 * @throws NoSuchFileException if the path does not exist
+		 * @throws AccessDeniedException if the directory cannot be listed
+		 */
+		FindListing(SSHRemoteProcess process, String dir) throws IOException {
+			this.process = process;
+			this.reader = new SSHLinuxStat.RecordReader(process.getInputStream());
+			this.dir = dir;
+			String status = reader.next();
+			if(status == null) {
+				throw new IOException("Cannot list " + dir);
+			}
+			switch(status) {
+			case "D":
+				break;
+			case "F":
+				throw new NotDirectoryException(dir);
+			case "N":
+				throw new NoSuchFileException(dir);
+			default:
+				throw new AccessDeniedException(dir);
+			}
+		}
+
+		static String command(String dir) {
+			String quoted = SSHLinuxFileSystem.quote(dir);
+			return "if [ ! -d " + quoted + " ]; then if [ -e " + quoted + " ] || [ -L " + quoted + " ]; then printf 'F\\0'; else printf 'N\\0'; fi; "
+					+ "elif [ ! -r " + quoted + " ] || [ ! -x " + quoted + " ]; then printf 'A\\0'; "
+					+ "else printf 'D\\0'; exec find -H " + quoted + " -mindepth 1 -maxdepth 1 -printf '"
+					+ SSHLinuxStat.FIND_FORMAT + "' 2>/dev/null; fi";
+		}
+
+		@Override
+		public SSHLinuxStat.Entry next() throws IOException {
+			String record = reader.next();
+			if(record == null) {
+				// find fails without output when the directory was removed since it was opened
+				if(empty && process.waitFor() != 0) {
+					throw new NoSuchFileException(dir);
+				}
+				return null;
+			}
+			empty = false;
+			SSHLinuxStat.Entry entry = SSHLinuxStat.parse(record);
+			return new SSHLinuxStat.Entry(SSHAttributeCache.fileName(entry.path), entry.attributes);
+		}
+
+		@Override
+		public void close() {
+			process.close();
+		}
+	}
+
+	/**
+	 * Listing read from SFTP readdir, one batch of entries at a time
+	 */
+	static class SftpListing implements Listing {
+		private final SSHSftpBackend sftp;
+		private final CloseableHandle handle;
+		private Iterator<DirEntry> batch;
+
+		/**
+		 * @throws NotDirectoryException if the path is not a directory
+		 * @throws NoSuchFileException if the path does not exist
+		 */
+		SftpListing(SSHSftpBackend sftp, String dir) throws IOException {
+			this.sftp = sftp;
+			// servers which do not follow a link on stat let opendir decide
+			SSHLinuxFileAttributes attrs = sftp.stat(dir);
+			if(!attrs.isDirectory() && !attrs.isSymbolicLink()) {
+				throw new NotDirectoryException(dir);
+			}
+			this.handle = sftp.openDir(dir);
+		}
+
+		@Override
+		public SSHLinuxStat.Entry next() throws IOException {
+			for(;;) {
+				if(batch == null || !batch.hasNext()) {
+					List<DirEntry> entries = sftp.readDir(handle);
+					if(entries == null) {
+						return null;
+					}
+					batch = entries.iterator();
+					continue;
+				}
+				DirEntry entry = batch.next();
+				String name = entry.getFilename();
+				if(!name.equals(".") && !name.equals("..")) {
+					return new SSHLinuxStat.Entry(name, SSHSftpBackend.toAttributes(entry.getAttributes()));
+				}
+			}
+		}
+
+		@Override
+		public void close() {
+			try {
+				handle.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+		}
+	}
+}
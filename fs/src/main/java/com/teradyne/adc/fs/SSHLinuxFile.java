@@ -3,6 +3,11 @@ package com.teradyne.adc.fs;
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CompletableFuture;
 
 public final class SSHLinuxFile extends File {
 
@@ -32,7 +37,38 @@ public final class SSHLinuxFile extends File {
 		this.remote = remote;
 	}
 	
+	/**
+	 * Give this local file its own copy of its content if it shares it with other localized files through
+	 * the content store, so that writing it does not change them, see
+	 * {@link SSHLinuxFileSystem#setContentStore(boolean)}
+	 * @throws IOException if the content cannot be copied
+	 */
+	public void detach() throws IOException {
+		SSHContentStore.detach(this.toPath(), true);
+	}
+
+	/**
+	 * Upload this local file or folder to its remote path, in the background if write-back is on, see
+	 * {@link SSHLinuxFileSystem#setWriteBack(int, long, java.util.concurrent.TimeUnit)}
+	 * @param recursive whether subfolders of a folder are committed too
+	 * @throws IOException if the upload fails, only without write-back
+	 */
 	public void commit(boolean recursive) throws IOException {
+		commitAsync(recursive);
+	}
+
+	/**
+	 * Upload this local file or folder to its remote path, in the background if write-back is on
+	 * @param recursive whether subfolders of a folder are committed too
+	 * @return completed once the file is uploaded, or completed exceptionally if the upload failed
+	 * @throws IOException if the upload fails, only without write-back
+	 */
+	public CompletableFuture<Void> commitAsync(boolean recursive) throws IOException {
+		SSHLinuxFileSystem fs = (SSHLinuxFileSystem)this.remote.getFileSystem();
+		return fs.commit(this, this.remote.toString(), recursive);
+	}
+
+	void commitNow(boolean recursive) throws IOException {
 		SSHLinuxFileSystem fs = (SSHLinuxFileSystem)this.remote.getFileSystem();
 		if(this.isDirectory()) {
 			fs.commitFolderTo(this.remote.toString(), this.toString(),recursive);
@@ -40,4 +76,26 @@ public final class SSHLinuxFile extends File {
 			fs.commitFileTo(this.remote.toString(), this.toString());
 		}
 	}
+
+	/**
+	 * Upload a copy of this local file taken first, so that the file can be rewritten while it is uploaded.
+	 * The copy keeps the name and attributes of the file, and is at the remote path of the file below the
+	 * write-back directory of the spool, so that an interrupted resumable upload of the same content is
+	 * resumed. A folder is uploaded as is.
+	 */
+	void commitSnapshot(boolean recursive) throws IOException {
+		if(!this.isFile()) {
+			commitNow(recursive);
+			return;
+		}
+		SSHLinuxFileSystem fs = (SSHLinuxFileSystem)this.remote.getFileSystem();
+		Path snapshot = Paths.get(fs.writeBackDir().toString(), this.remote.toString());
+		Files.createDirectories(snapshot.getParent());
+		try {
+			Files.copy(this.toPath(), snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+			fs.commitFileTo(this.remote.toString(), snapshot.toString());
+		} finally {
+			Files.deleteIfExists(snapshot);
+		}
+	}
 }
@@ -11,6 +11,7 @@ class SSHLinuxFileAttributes implements PosixFileAttributes {
 
 	private FileTime lmtime;
 	private FileTime latime;
+	private FileTime lctime;
 	private boolean isregularfile;
 	private boolean isdirectory;
 	private boolean issymlink;
@@ -18,6 +19,7 @@ class SSHLinuxFileAttributes implements PosixFileAttributes {
 	private UserPrincipal user;
 	private GroupPrincipal group;
 	private Set<PosixFilePermission> permissions;
+	private Object filekey;
 	
 	SSHLinuxFileAttributes setLastModifiedTime(FileTime lmtime) {
 		this.lmtime = lmtime;
@@ -29,6 +31,16 @@ class SSHLinuxFileAttributes implements PosixFileAttributes {
 		return this;
 	}
 
+	SSHLinuxFileAttributes setLastChangeTime(FileTime lctime) {
+		this.lctime = lctime;
+		return this;
+	}
+
+	SSHLinuxFileAttributes setFileKey(Object filekey) {
+		this.filekey = filekey;
+		return this;
+	}
+
 	SSHLinuxFileAttributes setIsRegularFile(boolean isregularfile) {
 		this.isregularfile = isregularfile;
 		return this;
@@ -74,6 +86,13 @@ class SSHLinuxFileAttributes implements PosixFileAttributes {
 		return this.latime;
 	}
 
+	/**
+	 * @return time of last status change (ctime), null if the backend does not report it
+	 */
+	FileTime lastChangeTime() {
+		return this.lctime;
+	}
+
 	//Linux system does not support file creation time
 	@Override
 	public FileTime creationTime() {
@@ -107,7 +126,7 @@ class SSHLinuxFileAttributes implements PosixFileAttributes {
 
 	@Override
 	public Object fileKey() {
-		return null;
+		return this.filekey;
 	}
 
 	@Override
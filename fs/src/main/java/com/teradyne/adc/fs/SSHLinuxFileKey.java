@@ -0,0 +1,45 @@
+package com.teradyne.adc.fs;
+
+/**
+ * Package private key identifying a remote file by its device and inode, returned by
+ * {@link SSHLinuxFileAttributes#fileKey()}
+ * @author wangho
+ *
+ */
+class SSHLinuxFileKey {
+	private final long dev;
+	private final long ino;
+
+	SSHLinuxFileKey(long dev, long ino) {
+		this.dev = dev;
+		this.ino = ino;
+	}
+
+	long dev() {
+		return dev;
+	}
+
+	long ino() {
+		return ino;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int)(dev ^ (dev >>> 32)) + (int)(ino ^ (ino >>> 32));
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj == this)
+			return true;
+		if (!(obj instanceof SSHLinuxFileKey))
+			return false;
+		SSHLinuxFileKey other = (SSHLinuxFileKey)obj;
+		return (this.dev == other.dev) && (this.ino == other.ino);
+	}
+
+	@Override
+	public String toString() {
+		return "(dev=" + Long.toHexString(dev) + ",ino=" + ino + ')';
+	}
+}
@@ -1,25 +1,38 @@
 package com.teradyne.adc.fs;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.lang.ref.SoftReference;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileStore;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitor;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
 import java.nio.file.WatchService;
 import java.nio.file.spi.FileSystemProvider;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.nio.file.attribute.*;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 import org.apache.sshd.client.SshClient;
 import org.apache.sshd.client.channel.ChannelExec;
@@ -28,9 +41,12 @@ import org.apache.sshd.client.future.ConnectFuture;
 import org.apache.sshd.client.scp.ScpClient;
 import org.apache.sshd.client.scp.ScpClient.Option;
 import org.apache.sshd.client.session.ClientSession;
+import org.apache.sshd.client.subsystem.sftp.SftpClient;
 import org.apache.sshd.common.scp.ScpTimestamp;
 import org.apache.sshd.common.util.io.NoCloseOutputStream;
 
+import com.teradyne.adc.fs.util.SSHFolderSync;
+
 /**
  * Implementation of  Linux FileSystem though SSH protocol implementations.
  */
@@ -39,7 +55,39 @@ public class SSHLinuxFileSystem
     extends FileSystem
 {
 	private Utils util;
-	private Map<String, SoftReference<SSHLinuxFileAttributes>> fileattrcache;
+	private SSHSftpBackend sftp;
+	private volatile boolean sftpEnabled;
+	private SSHAttributeCache fileattrcache;
+	private volatile SSHBlockCache blockcache;
+	private volatile SSHParallelTransfer parallelTransfer;
+	private volatile long parallelThreshold = SSHParallelTransfer.DEFAULT_THRESHOLD;
+	private volatile SSHResumableTransfer resumableTransfer;
+	private volatile SSHDeltaTransfer deltaTransfer;
+	private volatile SSHLocalizationCache localizationCache = new SSHLocalizationCache();
+	private volatile SSHSpool spool;
+	private volatile boolean contentAddressed;
+	private volatile SSHWriteBack writeBack;
+	private final Object writeBackLock = new Object();
+	private final SSHDigests digests = new SSHDigests(this);
+	private final SSHFolderSync folderSync = new SSHFolderSync() {
+		@Override
+		protected int exec(String cmd, InputStream in, OutputStream out) throws IOException {
+			try (SSHRemoteProcess process = client.open("{ " + cmd + "\n} 2>/dev/null", in)) {
+				if(in == null) {
+					process.getOutputStream().close();
+				}
+				InputStream stdout = process.getInputStream();
+				if(out != null) {
+					copy(stdout, out, Long.MAX_VALUE);
+				} else {
+					while(stdout.read() >= 0) {
+						// discarded
+					}
+				}
+				return process.waitFor();
+			}
+		}
+	};
 	
     //private final UnixFileSystemProvider provider;
     private final byte[] defaultDirectory;
@@ -49,6 +97,14 @@ public class SSHLinuxFileSystem
     private String localDir;
     
     public SSHLinuxFileSystem(String dir, String user, String password, String host, int port) throws IOException {
+        this(dir, user, password, host, port, SSHChannelPool.DEFAULT_MAX_CHANNELS);
+    }
+
+    /**
+     * @param maxChannels the maximum number of channels open at the same time on the single
+     * SSH session of this file system, should not exceed MaxSessions of the remote sshd
+     */
+    public SSHLinuxFileSystem(String dir, String user, String password, String host, int port, int maxChannels) throws IOException {
         this.defaultDirectory = dir.getBytes();
         if (this.defaultDirectory[0] != '/') {
             throw new RuntimeException("default directory must be absolute");
@@ -56,10 +112,11 @@ public class SSHLinuxFileSystem
 
         // the root directory
         this.rootDirectory = new SSHLinuxPath(this, "/");
-        this.client = new SSHClient(user, password, host, port);
+        this.client = new SSHClient(user, password, host, port, maxChannels);
         localDir = System.getProperty("java.io.tmpdir");
-        fileattrcache = new ConcurrentHashMap<String, SoftReference<SSHLinuxFileAttributes>>();
+        fileattrcache = new SSHAttributeCache();
         this.util = new Utils();
+        this.sftp = new SSHSftpBackend(() -> client.sftp());
     }
 
     private class SSHClient
@@ -70,58 +127,139 @@ public class SSHLinuxFileSystem
     	private int port;
     	
         private SshClient client;
-        private ClientSession session;
+        private volatile ClientSession session;
+        private final SSHChannelPool pool;
+        private SSHShellChannel shell;
+        private volatile boolean persistentShell;
+        private SftpClient sftp;
     	
-		public SSHClient(String user, String password, String host, int port) throws IOException {
+		public SSHClient(String user, String password, String host, int port, int maxChannels) throws IOException {
 			this.user = user;
 			this.password = password;
 			this.host = host;
 			this.port = port;
+			this.pool = new SSHChannelPool(maxChannels);
 	        this.start();
 		}
 		
 		public void exec(String cmd, OutputStream out) throws IOException {	
-			ChannelExec channel = getSession().createExecChannel(cmd); 
-			channel.setOut(new NoCloseOutputStream(out));
-
-			channel.open();
-			channel.waitFor(new ArrayList<ClientChannelEvent>(){
-					private static final long serialVersionUID = 1L;
-					{add( ClientChannelEvent.CLOSED);}
-				}, 0);
-			channel.close(false);		
+			if(persistentShell) {
+				shell().exec(cmd, out);
+				return;
+			}
+			pool.acquire();
+			try {
+				ChannelExec channel = getSession().createExecChannel(cmd); 
+				try {
+					channel.setOut(new NoCloseOutputStream(out));
+		
+					channel.open();
+					channel.waitFor(new ArrayList<ClientChannelEvent>(){
+							private static final long serialVersionUID = 1L;
+							{add( ClientChannelEvent.CLOSED);}
+						}, 0);
+				} finally {
+					channel.close(false);
+				}
+			} finally {
+				pool.release();
+			}
+		}
+		
+		/**
+		 * Start a command on its own exec channel and stream its stdout, the channel keeps
+		 * a slot of the pool until the returned process is closed
+		 * @param stdin stream pumped to the stdin of the command, null to write it through the process
+		 */
+		public SSHRemoteProcess open(String cmd, InputStream stdin) throws IOException {
+			pool.acquire();
+			ChannelExec channel;
+			try {
+				channel = getSession().createExecChannel(cmd);
+			} catch (IOException | RuntimeException e) {
+				pool.release();
+				throw e;
+			}
+			return new SSHRemoteProcess(channel, stdin, pool::release);
+		}
+		
+		public synchronized void setPersistentShell(boolean persistentShell) {
+			if(persistentShell) {
+				checkLongLived(true, sftpEnabled);
+			}
+			this.persistentShell = persistentShell;
+			if(!persistentShell) {
+				closeShell();
+			}
 		}
 		
 		public void scpFrom(String remotePath, String localPath, Boolean isDirectory) throws IOException {
-			ScpClient scp = getSession().createScpClient();
-			if(isDirectory) {
-				scp.download(remotePath, localPath, ScpClient.Option.TargetIsDirectory, ScpClient.Option.Recursive);
-			} else {
-				scp.download(remotePath, localPath);
+			pool.acquire();
+			try {
+				ScpClient scp = getSession().createScpClient();
+				if(isDirectory) {
+					scp.download(remotePath, localPath, ScpClient.Option.TargetIsDirectory, ScpClient.Option.Recursive);
+				} else {
+					scp.download(remotePath, localPath);
+				}
+			} finally {
+				pool.release();
 			}
 		}
 		
 		public void scpFrom(String remotePath, OutputStream out) throws IOException {
-			ScpClient scp = getSession().createScpClient();
-			scp.download(remotePath, out);
+			pool.acquire();
+			try {
+				ScpClient scp = getSession().createScpClient();
+				scp.download(remotePath, out);
+			} finally {
+				pool.release();
+			}
 		}
 		
 		public void scpTo(InputStream in, String remote, long size, Collection<PosixFilePermission> perms, ScpTimestamp time) throws IOException {
-			ScpClient scp = getSession().createScpClient();
-			scp.upload(in, remote, size, perms, time);
+			pool.acquire();
+			try {
+				ScpClient scp = getSession().createScpClient();
+				scp.upload(in, remote, size, perms, time);
+			} finally {
+				pool.release();
+			}
 		}
 		
 		public void scpTo(String remotePath, String localPath, Option... options) throws IOException {
-			ScpClient scp = getSession().createScpClient();
-			scp.upload(localPath, remotePath, options);
+			pool.acquire();
+			try {
+				ScpClient scp = getSession().createScpClient();
+				scp.upload(localPath, remotePath, options);
+			} finally {
+				pool.release();
+			}
+		}
+
+		/**
+		 * @throws IllegalArgumentException if the long-lived channels leave no slot of the pool to the other channels
+		 */
+		private void checkLongLived(boolean shell, boolean sftp) {
+			int longLived = (shell ? 1 : 0) + (sftp ? 1 : 0);
+			if(longLived >= pool.capacity()) {
+				throw new IllegalArgumentException("A pool of " + pool.capacity() + " channels leaves none for commands next to "
+						+ longLived + " long-lived channels");
+			}
+		}
+
+		public SSHChannelPoolStatistics statistics() {
+			return pool.statistics();
 		}
 
 		public boolean isOpen() {
 			return this.client.isOpen();
 		}
 		
-		public void close() throws IOException {
-			if(session.isOpen()) {
+		public synchronized void close() throws IOException {
+			closeShell();
+			closeSftp();
+			if(session != null && session.isOpen()) {
 				session.close();
 			}
 			if(client.isOpen()) {
@@ -130,25 +268,92 @@ public class SSHLinuxFileSystem
 			}
 		}
 
+		/**
+		 * The shell channel reserves one slot of the pool for as long as it is open,
+		 * without waiting for it as the monitor of the client is held
+		 */
+		private synchronized SSHShellChannel shell() throws IOException {
+			if(shell != null && shell.isOpen()) {
+				return shell;
+			}
+			closeShell();
+			pool.reserve();
+			try {
+				shell = new SSHShellChannel(getSession());
+			} catch (IOException | RuntimeException e) {
+				pool.unreserve();
+				throw e;
+			}
+			return shell;
+		}
+		
+		private synchronized void closeShell() {
+			if(shell != null) {
+				shell.close();
+				shell = null;
+				pool.unreserve();
+			}
+		}
+
+		/**
+		 * The SFTP client is shared by all callers and reserves one slot of the pool for as long as it is open,
+		 * without waiting for it as the monitor of the client is held
+		 */
+		private synchronized SftpClient sftp() throws IOException {
+			if(sftp != null && sftp.isOpen()) {
+				return sftp;
+			}
+			closeSftp();
+			pool.reserve();
+			try {
+				sftp = getSession().createSftpClient();
+			} catch (IOException | RuntimeException e) {
+				pool.unreserve();
+				throw e;
+			}
+			return sftp;
+		}
+		
+		private synchronized void closeSftp() {
+			if(sftp != null) {
+				try {
+					sftp.close();
+				} catch (IOException e) {
+					// already broken, nothing to do
+				}
+				sftp = null;
+				pool.unreserve();
+			}
+		}
+
 		private ClientSession getSession() throws IOException {
-			if(session !=null && session.isOpen()) {
-				return session;
+			ClientSession current = session;
+			if(current !=null && current.isOpen()) {
+				return current;
 			}
-			start();
-			return session;
+			return start();
 		}
 		
-		private void start() throws IOException {
+		/**
+		 * Connect and authenticate, synchronized so that concurrent callers noticing a
+		 * dropped session reconnect only once and then share the new session
+		 */
+		private synchronized ClientSession start() throws IOException {
 	    	if(client!= null && client.isOpen() && session != null && session.isOpen()) {
-	    		return;
+	    		return session;
+	    	}
+	    	if(client != null && client.isOpen()) {
+	    		client.stop();
 	    	}
 	    	client = SshClient.setUpDefaultClient();
 	    	client.start();
 	    	ConnectFuture con = client.connect(user, host, port);
 			con.await();
-			session = con.getSession();
-			session.addPasswordIdentity(password);
-			session.auth().verify().await();
+			ClientSession created = con.getSession();
+			created.addPasswordIdentity(password);
+			created.auth().verify().await();
+			session = created;
+			return created;
 		}
     }
     
@@ -156,7 +361,6 @@ public class SSHLinuxFileSystem
     {
     	private final static String COMMAND_CP = "cp ";
     	private final static String COMMAND_MV = "mv ";
-    	private final static String COMMAND_MD5SUM = "md5sum ";
     	
     	Utils() {
 			// Package-private
@@ -170,7 +374,11 @@ public class SSHLinuxFileSystem
     	 */
     	public String copy(String src, String dst) throws IOException {
     		OutputStream out = new ByteArrayOutputStream();
-    		SSHLinuxFileSystem.this.client.exec(COMMAND_CP + src + " " + dst, out);
+    		try {
+    			SSHLinuxFileSystem.this.client.exec(COMMAND_CP + src + " " + dst, out);
+    		} finally {
+    			invalidateTarget(dst, src);
+    		}
     		return out.toString();
     	}
     	/**
@@ -181,23 +389,92 @@ public class SSHLinuxFileSystem
     	 * @throws IOException
     	 */
     	public String move(String src, String dst) throws IOException {
-    		OutputStream out = new ByteArrayOutputStream();
-    		SSHLinuxFileSystem.this.client.exec(COMMAND_MV + src + " " + dst, out);
-    		return out.toString();
+    		try {
+	    		if(sftpEnabled) {
+	    			try {
+	    				sftp.rename(src, dst);
+	    				return "";
+	    			} catch (IOException e) {
+	    				// SFTP v3 does not overwrite an existing target, only then let mv do it
+	    				try {
+	    					sftp.lstat(dst);
+	    				} catch (IOException missing) {
+	    					throw e;
+	    				}
+	    			}
+	    			OutputStream out = new ByteArrayOutputStream();
+	    			SSHLinuxFileSystem.this.client.exec(COMMAND_MV + "-- " + quote(src) + " " + quote(dst), out);
+	    			return out.toString();
+	    		}
+	    		OutputStream out = new ByteArrayOutputStream();
+	    		SSHLinuxFileSystem.this.client.exec(COMMAND_MV + src + " " + dst, out);
+	    		return out.toString();
+    		} finally {
+    			fileattrcache.invalidateTree(src);
+    			invalidateTarget(dst, src);
+    		}
     	}
     	
+    	/**
+    	 * @return MD5 digest of a remote file, cached as long as its size and modification time do not change
+    	 * @throws IOException if the file does not exist or is not a regular file
+    	 */
     	public String getMD5(String path) throws IOException {
-    		OutputStream out = new ByteArrayOutputStream();
-    		SSHLinuxFileSystem.this.client.exec(COMMAND_MD5SUM + path, out);
-    		String result = out.toString();
-    		if(result.equalsIgnoreCase("") || result.contains("No such file or directory") || result.contains("Is a directory")) {
+    		String md5 = getDigests(Collections.singleton(path), SSHDigestAlgorithm.MD5).get(path);
+    		if(md5 == null) {
     			throw new IOException("No such file or is a directory.");
     		}
-    		String[] md5 = result.split("\\s+");
-    		if(md5.length != 2) {
-    			throw new IOException("Incomplete information of MD5.");
-    		}
-    		return md5[0];
+    		return md5;
+    	}
+
+    	/**
+    	 * @return fastest digest algorithm available on the remote host
+    	 * @throws IOException if none of the tools of {@link SSHDigestAlgorithm} is installed
+    	 */
+    	public SSHDigestAlgorithm getDigestAlgorithm() throws IOException {
+    		return digests.fastest();
+    	}
+
+    	/**
+    	 * Hash many remote files with two remote commands, see {@link #getDigests(Collection, SSHDigestAlgorithm, BiConsumer)}
+    	 * @return digest in hexadecimal of each regular file, paths which do not exist or are not regular files are left out
+    	 */
+    	public Map<String, String> getDigests(Collection<String> paths, SSHDigestAlgorithm algorithm) throws IOException {
+    		Map<String, String> result = new LinkedHashMap<>();
+    		getDigests(paths, algorithm, result::put);
+    		return result;
+    	}
+
+    	/**
+    	 * Hash many remote files with two remote commands whatever their number, one listing their sizes and
+    	 * modification times and one hashing them with parallel workers on the remote host. Digests are
+    	 * cached per path, size and modification time, so that files which did not change are not hashed again.
+    	 * @param paths remote files, paths which do not exist or are not regular files are left out
+    	 * @param algorithm algorithm whose tool is installed on the remote host, see {@link #getDigestAlgorithm()}
+    	 * @param consumer receives each path with its digest in hexadecimal as it streams back, cached ones first
+    	 */
+    	public void getDigests(Collection<String> paths, SSHDigestAlgorithm algorithm, BiConsumer<String, String> consumer) throws IOException {
+    		digests.digests(paths, algorithm, consumer);
+    	}
+
+    	/**
+    	 * Hash all regular files below a remote directory, see {@link #getDigests(Collection, SSHDigestAlgorithm, BiConsumer)}
+    	 * @return digest in hexadecimal of each file by its path
+    	 * @throws NoSuchFileException if the directory does not exist
+    	 */
+    	public Map<String, String> getTreeDigests(String dir, SSHDigestAlgorithm algorithm) throws IOException {
+    		Map<String, String> result = new TreeMap<>();
+    		getTreeDigests(dir, algorithm, result::put);
+    		return result;
+    	}
+
+    	/**
+    	 * Hash all regular files below a remote directory, see {@link #getDigests(Collection, SSHDigestAlgorithm, BiConsumer)}
+    	 * @param consumer receives the path of each file with its digest in hexadecimal as it streams back, cached ones first
+    	 * @throws NoSuchFileException if the directory does not exist
+    	 */
+    	public void getTreeDigests(String dir, SSHDigestAlgorithm algorithm, BiConsumer<String, String> consumer) throws IOException {
+    		digests.treeDigests(dir, algorithm, consumer);
     	}
     }
     
@@ -205,6 +482,40 @@ public class SSHLinuxFileSystem
     	return this.util;
     }
     
+    /**
+     * Run the remote commands of this file system through one long-lived shell channel instead of
+     * opening a new exec channel per command, which saves a round trip per command on slow links. Commands
+     * of concurrent callers are pipelined: each is written to the shell without waiting for the replies of
+     * the others.
+     * File transfers still use their own channels. The shell keeps one of the channels of the file system.
+     * @param persistentShell true to use a persistent shell, false to open an exec channel per command
+     * @throws IllegalArgumentException if no channel would be left for the other commands
+     */
+    public void setPersistentShell(boolean persistentShell) {
+    	this.client.setPersistentShell(persistentShell);
+    }
+    
+    /**
+     * Serve file attributes, renames and stream transfers of this file system through the SFTP
+     * subsystem instead of running and parsing commands such as <code>ls</code> on the remote host.
+     * The SFTP client keeps one of the channels of the file system.
+     * @param sftpEnabled true to use SFTP, false to use exec channels and SCP
+     * @throws IllegalArgumentException if no channel would be left for the other commands
+     */
+    public void setSftpEnabled(boolean sftpEnabled) {
+    	if(sftpEnabled) {
+    		this.client.checkLongLived(this.client.persistentShell, true);
+    	}
+    	this.sftpEnabled = sftpEnabled;
+    }
+    
+    /**
+     * @return occupancy and wait time statistics of the channels opened on the SSH session
+     */
+    public SSHChannelPoolStatistics getChannelPoolStatistics() {
+    	return this.client.statistics();
+    }
+    
     // package-private
     byte[] defaultDirectory() {
         return defaultDirectory;
@@ -240,7 +551,12 @@ public class SSHLinuxFileSystem
 
     @Override
     public final void close() throws IOException {
-    	client.close();
+    	try {
+    		setWriteBack(0, 0, TimeUnit.MILLISECONDS);
+    	} finally {
+    		setBlockCache(0);
+    		client.close();
+    	}
     }
     
     @Override
@@ -423,6 +739,17 @@ public class SSHLinuxFileSystem
         };
     }
 
+    /**
+     * Quote an argument for the remote shell so that spaces and special characters are kept as is
+     */
+    static String quote(String arg) {
+        return "'" + arg.replace("'", "'\\''") + "'";
+    }
+
+    // block size of dd for ranged reads and writes
+    private static final int RANGE_BLOCK_SIZE = 64 * 1024;
+    // strerror(ENOENT) of remote tools run with LC_ALL=C
+    private static final String NO_SUCH_FILE = "No such file or directory";
     private static final String GLOB_SYNTAX = "glob";
     private static final String REGEX_SYNTAX = "regex";
     private static final Pattern idP = Pattern.compile("uid=(\\d+)\\(.*?\\) gid=(\\d+)\\(.*?\\) groups=(\\d+)\\(.*?\\)\n");
@@ -568,86 +895,312 @@ public class SSHLinuxFileSystem
 	}
 	
 	public PosixFileAttributes getFileAttributes(Path path, boolean touch) throws IOException {
-		SoftReference<SSHLinuxFileAttributes> ref = fileattrcache.get(path.toString());
-		if(ref != null) {
-			 SSHLinuxFileAttributes attr = ref.get();
-			 if(attr != null) {
-				 return attr;
-			 }
+		SSHLinuxFileAttributes cached = fileattrcache.get(path.toString());
+		if(cached != null) {
+			return cached;
+		}
+		if(!touch && fileattrcache.isMissing(path.toString())) {
+			throw new NoSuchFileException(path.toString());
+		}
+		if(touch) {
+			// the file and thus its parent directory may be created below
+			fileattrcache.invalidate(path.toString());
 		}
 		
+		if(sftpEnabled) {
+			SSHLinuxFileAttributes attr;
+			try {
+				attr = sftp.lstat(path.toString());
+			} catch (NoSuchFileException e) {
+				if(!touch) {
+					fileattrcache.putMissing(path.toString());
+					throw e;
+				}
+				sftp.create(path.toString());
+				attr = sftp.lstat(path.toString());
+			}
+			fileattrcache.put(path.toString(), attr);
+			return attr;
+		}
+		
+		// a single round trip, creating the file first if asked to and it does not exist, errors come back
+		// in the output so that a missing file can be told from a failure
+		String stat = SSHLinuxStat.statCommand(path.toString());
+		String cmd = touch ? stat + " 2>/dev/null || { LC_ALL=C touch -- " + quote(path.toString()) + " 2>&1 && LC_ALL=C " + stat + " 2>&1; }"
+				: "LC_ALL=C " + stat + " 2>&1";
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
-		ByteArrayOutputStream out2 = new ByteArrayOutputStream();//last access time
-		client.exec("ls -ld --time-style '+%Y-%m-%d %H:%M:%S' " + path.toString(), out);
-		String result = out.toString().replaceAll(path.toString() + "\n", "");
-		if(result.equalsIgnoreCase("") || result.contains("No such file or directory")) {
-			if(touch) {
-				this.client.exec("touch " + path, null);
-				out = new ByteArrayOutputStream();
-				client.exec("ls -ld --time-style '+%Y-%m-%d %H:%M:%S' " + path.toString(), out);
-				result = out.toString().replaceAll(path.toString() + "\n", "");
-			} else {
-				throw new IOException("No such file or directory: " + path);
+		client.exec(cmd, out);
+		String result = out.toString("UTF-8");
+		int end = result.indexOf('\0');
+		if(end < 0) {
+			if(result.contains(NO_SUCH_FILE)) {
+				if(!touch) {
+					fileattrcache.putMissing(path.toString());
+				}
+				throw new NoSuchFileException(path.toString());
+			}
+			throw new IOException("Cannot get the attributes of " + path + (result.isEmpty() ? "" : ": " + result.trim()));
+		}
+		SSHLinuxFileAttributes toCache = SSHLinuxStat.parse(result.substring(0, end)).attributes;
+		fileattrcache.put(path.toString(), toCache);
+		return toCache;
+	}
+
+	/**
+	 * Get the attributes of many paths with a single remote command, the paths being fed to
+	 * <code>stat</code> through stdin and the results parsed as they stream back.
+	 * @param paths paths of the same file system
+	 * @return attributes of each path in the order given, mapped to null if the path does not exist
+	 * @throws IOException
+	 */
+	public Map<Path, PosixFileAttributes> getFileAttributes(Collection<? extends Path> paths) throws IOException {
+		Map<Path, PosixFileAttributes> result = new LinkedHashMap<>();
+		Map<String, Path> missing = new HashMap<>();
+		ByteArrayOutputStream stdin = new ByteArrayOutputStream();
+		for(Path path : paths) {
+			result.put(path, null);
+			SSHLinuxFileAttributes cached = fileattrcache.get(path.toString());
+			if(cached != null) {
+				result.put(path, cached);
+			} else if(fileattrcache.isMissing(path.toString())) {
+				continue;
+			} else if(missing.put(path.toString(), path) == null) {
+				stdin.write(path.toString().getBytes("UTF-8"));
+				stdin.write(0);
 			}
 		}
-		client.exec("ls -ldu --time-style '+%Y-%m-%d %H:%M:%S' "+ path.toString(), out2);
-		String result2 = out2.toString().replaceAll(path.toString() + "\n", "");
-		//drwxr-xr-x　3　user　group　102　2017/05/01 13:24:56　Filename
-		//property inode user group size(byte) month date year/time filename
+		if(missing.isEmpty()) {
+			return result;
+		}
 		
-		String[] split = result.split(" ");
-		String[] split2 = result2.split(" ");
-		if(split.length == 7 && split2.length == 7) {
-			//get authorities
-			byte[] property = split[0].getBytes();
-			Set<PosixFilePermission> permissions = new HashSet<PosixFilePermission>();
-			if(property[1] == 'r') permissions.add(PosixFilePermission.OWNER_READ);
-			if(property[2] == 'w') permissions.add(PosixFilePermission.OWNER_WRITE);
-			if(property[3] == 'x') permissions.add(PosixFilePermission.OWNER_EXECUTE);
-			if(property[4] == 'r') permissions.add(PosixFilePermission.GROUP_READ);
-			if(property[5] == 'w') permissions.add(PosixFilePermission.GROUP_WRITE);
-			if(property[6] == 'x') permissions.add(PosixFilePermission.GROUP_EXECUTE);
-			if(property[7] == 'r') permissions.add(PosixFilePermission.OTHERS_READ);
-			if(property[8] == 'w') permissions.add(PosixFilePermission.OTHERS_WRITE);
-			if(property[9] == 'x') permissions.add(PosixFilePermission.OTHERS_EXECUTE);
-			//Get File Modified time
-			SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-			FileTime mTime,aTime;
-			try {
-				mTime = FileTime.from(sdf.parse(split[5] + " " + split[6]).toInstant());
-				aTime = FileTime.from(sdf.parse(split2[5] + " " + split2[6]).toInstant());
-			} catch (ParseException e) {
-				throw new IOException("Failed to parse modified time of:  " + path);
+		if(sftpEnabled) {
+			for(Path path : missing.values()) {
+				try {
+					result.put(path, getFileAttributes(path, false));
+				} catch (NoSuchFileException e) {
+					// stays null
+				}
 			}
-			
-			SSHLinuxFileAttributes toCache = new SSHLinuxFileAttributes()
-					.setIsDirectory(property[0] == 'd')
-					.setIsSymbolLink(property[0] == 'l')
-					.setIsRegularFile(property[0] == '-')
-					.setAttributes(permissions)
-					.setUser(new UserPrincipal() {
-						
-						@Override
-						public String getName() {
-							return split[2];
-						}
-					})
-					.setGroup(new GroupPrincipal() {
-						
-						@Override
-						public String getName() {
-							return split[3];
-						}
-					})
-					.setSize(Integer.parseInt(split[4]))
-					.setLastModifiedTime(mTime)
-					.setLastAccesstime(aTime);
-			fileattrcache.put(path.toString(), new SoftReference<SSHLinuxFileAttributes>(toCache));
-			return toCache;
-		} else {
-			throw new IOException("Incomplete information of file or directory: " + path);
+			return result;
 		}
 		
+		try (SSHRemoteProcess process = client.open(SSHLinuxStat.bulkStatCommand(), new ByteArrayInputStream(stdin.toByteArray()))) {
+			SSHLinuxStat.RecordReader reader = new SSHLinuxStat.RecordReader(process.getInputStream());
+			String record;
+			while((record = reader.next()) != null) {
+				SSHLinuxStat.Entry entry = SSHLinuxStat.parse(record);
+				Path path = missing.get(entry.path);
+				if(path != null) {
+					fileattrcache.put(entry.path, entry.attributes);
+					result.put(path, entry.attributes);
+				}
+			}
+		}
+		// paths left out may also be unreadable, so they are not remembered as missing
+		return result;
+	}
+
+	/**
+	 * Open a stream over the entries of a remote directory. The entries are listed by a single remote
+	 * command and read as the stream is iterated, their attributes being cached on the way so that
+	 * {@link #getFileAttributes(Path)} of an entry does not go to the remote host again.
+	 * The stream must be closed to release its channel.
+	 * @param dir remote directory
+	 * @return stream of the entries of the directory, "." and ".." excluded
+	 * @throws NotDirectoryException if the path is not a directory
+	 * @throws IOException
+	 */
+	public DirectoryStream<Path> newDirectoryStream(Path dir) throws IOException {
+		return newDirectoryStream(dir, (DirectoryStream.Filter<Path>) null);
+	}
+
+	/**
+	 * Open a stream over the entries of a remote directory whose file name matches a glob
+	 * @param dir remote directory
+	 * @param glob glob pattern matched against the file name of each entry
+	 * @return stream of the matching entries
+	 * @throws IOException
+	 */
+	public DirectoryStream<Path> newDirectoryStream(Path dir, String glob) throws IOException {
+		final PathMatcher matcher = getPathMatcher(GLOB_SYNTAX + ":" + glob);
+		return newDirectoryStream(dir, entry -> matcher.matches(entry.getFileName()));
+	}
+
+	/**
+	 * Open a stream over the entries of a remote directory accepted by a filter
+	 * @param dir remote directory
+	 * @param filter filter of the entries, null to accept all
+	 * @return stream of the accepted entries
+	 * @throws IOException
+	 */
+	public DirectoryStream<Path> newDirectoryStream(Path dir, DirectoryStream.Filter<? super Path> filter) throws IOException {
+		SSHLinuxPath path = (SSHLinuxPath) dir;
+		SSHLinuxDirectoryStream.Listing listing;
+		if(sftpEnabled) {
+			listing = new SSHLinuxDirectoryStream.SftpListing(sftp, path.toString());
+		} else {
+			SSHRemoteProcess process = client.open(SSHLinuxDirectoryStream.FindListing.command(path.toString()), null);
+			try {
+				process.getOutputStream().close();
+				listing = new SSHLinuxDirectoryStream.FindListing(process, path.toString());
+			} catch (IOException | RuntimeException e) {
+				process.close();
+				throw e;
+			}
+		}
+		return new SSHLinuxDirectoryStream(this, path, filter, listing);
+	}
+
+	/**
+	 * Walk a remote file tree lazily, like {@link Files#walk(Path, int, FileVisitOption...)}. The tree is listed
+	 * by a single remote command streamed as the returned stream is consumed, the attributes of every path
+	 * being cached on the way. The stream must be closed to release its channel.
+	 * @param start first path of the walk
+	 * @param maxDepth maximum number of directory levels to visit
+	 * @param options {@link FileVisitOption#FOLLOW_LINKS} to descend into symbolic links to directories
+	 * @return stream of the paths of the tree, start first
+	 * @throws IOException
+	 */
+	public Stream<Path> walk(Path start, int maxDepth, FileVisitOption... options) throws IOException {
+		return walk(start, maxDepth, null, options);
+	}
+
+	/**
+	 * Walk a remote file tree lazily, leaving out the entries whose file name matches one of the prune patterns
+	 * together with everything below them
+	 * @param prune glob patterns of file names matched like <code>find -name</code>, null to prune nothing
+	 * @see #walk(Path, int, FileVisitOption...)
+	 */
+	public Stream<Path> walk(Path start, int maxDepth, Collection<String> prune, FileVisitOption... options) throws IOException {
+		return openWalker(start, maxDepth, Arrays.asList(options).contains(FileVisitOption.FOLLOW_LINKS), prune).stream();
+	}
+
+	/**
+	 * Walk a remote file tree calling back the visitor, like {@link Files#walkFileTree(Path, FileVisitor)},
+	 * the whole tree being listed by a single remote command
+	 * @return the start path
+	 * @throws IOException
+	 */
+	public Path walkFileTree(Path start, FileVisitor<? super Path> visitor) throws IOException {
+		return walkFileTree(start, EnumSet.noneOf(FileVisitOption.class), Integer.MAX_VALUE, null, visitor);
+	}
+
+	/**
+	 * @see #walkFileTree(Path, Set, int, Collection, FileVisitor)
+	 */
+	public Path walkFileTree(Path start, Set<FileVisitOption> options, int maxDepth, FileVisitor<? super Path> visitor) throws IOException {
+		return walkFileTree(start, options, maxDepth, null, visitor);
+	}
+
+	/**
+	 * Walk a remote file tree calling back the visitor, like {@link Files#walkFileTree(Path, Set, int, FileVisitor)}.
+	 * Attributes are passed to the visitor as listed, directories which cannot be read are skipped.
+	 * @param prune glob patterns of file names matched like <code>find -name</code> whose entries are
+	 * not visited, null to prune nothing
+	 * @return the start path
+	 * @throws IOException
+	 */
+	public Path walkFileTree(Path start, Set<FileVisitOption> options, int maxDepth, Collection<String> prune, FileVisitor<? super Path> visitor) throws IOException {
+		try (SSHLinuxTreeWalker walker = openWalker(start, maxDepth, options.contains(FileVisitOption.FOLLOW_LINKS), prune)) {
+			walker.walk(visitor, maxDepth);
+		}
+		return start;
+	}
+
+	private SSHLinuxTreeWalker openWalker(Path start, int maxDepth, boolean followLinks, Collection<String> prune) throws IOException {
+		if(maxDepth < 0) {
+			throw new IllegalArgumentException("maxDepth may not be negative");
+		}
+		String path = start.toString();
+		while(path.length() > 1 && path.endsWith("/")) {
+			path = path.substring(0, path.length() - 1);
+		}
+		SSHRemoteProcess process = client.open(SSHLinuxTreeWalker.command(path, maxDepth, followLinks, prune), null);
+		process.getOutputStream().close();
+		return new SSHLinuxTreeWalker(this, process, path);
+	}
+
+	/**
+	 * Cache attributes received as a side effect of another remote call, such as a directory listing
+	 */
+	void cacheAttributes(String path, SSHLinuxFileAttributes attributes) {
+		fileattrcache.put(path, attributes);
+	}
+
+	/**
+	 * Forget the cached attributes of a path written by other means than the methods of this class
+	 */
+	void invalidate(String path) {
+		fileattrcache.invalidate(path);
+	}
+
+	/**
+	 * Start a command on its own exec channel, see {@link SSHRemoteProcess}
+	 * @param stdin stream pumped to the stdin of the command, null to write it through the process
+	 */
+	SSHRemoteProcess open(String cmd, InputStream stdin) throws IOException {
+		return client.open(cmd, stdin);
+	}
+
+	boolean isSftpEnabled() {
+		return sftpEnabled;
+	}
+
+	SSHSftpBackend sftp() {
+		return sftp;
+	}
+
+	/**
+	 * Commit a local file or folder to its remote path, queued if write-back is on
+	 * @return completed once it is uploaded
+	 */
+	CompletableFuture<Void> commit(SSHLinuxFile file, String remote, boolean recursive) throws IOException {
+		SSHWriteBack queue = writeBack;
+		if(queue != null) {
+			return queue.submit(file, remote, recursive);
+		}
+		file.commitNow(recursive);
+		return CompletableFuture.completedFuture(null);
+	}
+
+	/**
+	 * Commit files with {@link SSHLinuxFile#commit(boolean)}, and so when a {@link SSHFileOutputStream} is
+	 * closed, in the background instead of right away. A commit waits for the delay before it starts, and the
+	 * commits of the same remote path made meanwhile are coalesced into a single upload, so that a file
+	 * rewritten many times in a row is uploaded once. A commit made while its path is being uploaded follows
+	 * that upload. Callers needing the remote file up to date wait for {@link SSHLinuxFile#commitAsync(boolean)},
+	 * {@link SSHFileOutputStream#sync()} or {@link #flushAll()}. Turning write-back off, or closing the file
+	 * system, flushes the queued commits first, and commits made meanwhile are uploaded right away once the
+	 * upload of their path is done.
+	 * @param concurrency most uploads in flight, 0 to commit right away again
+	 * @param delay time a commit waits for more commits of the same path before it starts
+	 * @param unit unit of the delay
+	 * @throws IOException if a queued commit failed while write-back is turned off
+	 */
+	public void setWriteBack(int concurrency, long delay, TimeUnit unit) throws IOException {
+		synchronized(writeBackLock) {
+			// commits go to the previous queue until it is flushed, which orders them after its uploads
+			SSHWriteBack previous = writeBack;
+			try {
+				if(previous != null) {
+					previous.close();
+				}
+			} finally {
+				writeBack = concurrency > 0 ? new SSHWriteBack(concurrency, unit.toNanos(delay)) : null;
+			}
+		}
+	}
+
+	/**
+	 * Start the commits queued by write-back right away and wait until all of them are uploaded
+	 * @throws IOException first failure of a commit in the background since the last flush, with the
+	 * others suppressed
+	 */
+	public void flushAll() throws IOException {
+		SSHWriteBack queue = writeBack;
+		if(queue != null) {
+			queue.flush();
+		}
 	}
 
 	/**
@@ -658,13 +1211,25 @@ public class SSHLinuxFileSystem
 	 * @throws IOException
 	 */
 	public void commitFolderTo(String to, String from, boolean recursive) throws IOException {
-		List<Option> options = new ArrayList<>();
-		options.add(Option.TargetIsDirectory);
-		if(recursive) {
-			options.add(Option.Recursive);
+		// into the folder named after the local one, where scp puts it
+		syncFolderTo((to.endsWith("/") ? to : to + "/") + new File(from).getName(), from, recursive, false);
+	}
+
+	/**
+	 * Make a remote folder hold the same files as a local folder, transferring only the files which are
+	 * missing remotely or differ in size or modification time, see {@link SSHFolderSync}
+	 * @param to remote folder, created if missing
+	 * @param from local folder
+	 * @param recursive whether subfolders are synchronized too
+	 * @param delete whether files and folders of the remote folder missing locally are deleted
+	 * @throws IOException
+	 */
+	public void syncFolderTo(String to, String from, boolean recursive, boolean delete) throws IOException {
+		try {
+			folderSync.upload(from, to, recursive, delete);
+		} finally {
+			fileattrcache.invalidateTree(to);
 		}
-		
-		this.client.scpTo(to, from, options.toArray(new Option[0]));
 	}
 
 	/**
@@ -674,22 +1239,350 @@ public class SSHLinuxFileSystem
 	 * @throws IOException
 	 */
 	public void commitFileTo(String to, String from) throws IOException {
-		this.client.scpTo(to, from);
+		try {
+			SSHDeltaTransfer delta = deltaTransfer;
+			SSHResumableTransfer resumable = resumableTransfer;
+			SSHParallelTransfer parallel = parallelTransfer;
+			File local = new File(from);
+			if(delta != null && local.isFile()) {
+				String target = uploadTarget(to, local);
+				// the delta is computed against the current remote file
+				fileattrcache.invalidate(target);
+				try {
+					PosixFileAttributes attr = getFileAttributes(getPath(target), false);
+					if(attr.isRegularFile() && attr.size() > 0 && delta.upload(local, target, attr.size())) {
+						return;
+					}
+				} catch (NoSuchFileException e) {
+					// nothing to compute a delta against
+				}
+			}
+			if(resumable != null && local.isFile()) {
+				resumable.upload(local, uploadTarget(to, local));
+				return;
+			}
+			if(parallel != null && local.isFile() && local.length() >= parallelThreshold) {
+				parallel.upload(local, uploadTarget(to, local));
+				return;
+			}
+			this.client.scpTo(to, from);
+		} finally {
+			invalidateTarget(to, from);
+		}
+	}
+	
+	/**
+	 * @return the remote file written by a copy of a local file, which is the entry named after it if the
+	 * target is a directory
+	 */
+	private String uploadTarget(String to, File local) throws IOException {
+		try {
+			if(getFileAttributes(getPath(to), false).isDirectory()) {
+				return (to.endsWith("/") ? to : to + "/") + local.getName();
+			}
+		} catch (NoSuchFileException e) {
+			// the target is the new file itself
+		}
+		return to;
+	}
+	
+	/**
+	 * Forget the cached attributes of a target written by a copy, which is either the target itself
+	 * or, if the target is a directory, the entry named after the source inside it
+	 */
+	private void invalidateTarget(String target, String source) {
+		fileattrcache.invalidate(target);
+		fileattrcache.invalidate(target + "/" + SSHAttributeCache.fileName(source.replace('\\', '/')));
+	}
+	
+	/**
+	 * Set the maximum number of entries of the file attribute cache, the least recently used are evicted first
+	 * @param maxEntries maximum number of cached paths, 0 to disable caching
+	 */
+	public void setAttributeCacheSize(int maxEntries) {
+		fileattrcache.setMaxEntries(maxEntries);
+	}
+
+	/**
+	 * Set the maximum number of digests cached by {@link Utils#getDigests(Collection, SSHDigestAlgorithm)},
+	 * the least recently used are evicted first
+	 * @param maxEntries maximum number of cached paths, 0 to disable caching
+	 */
+	public void setDigestCacheSize(int maxEntries) {
+		digests.setMaxEntries(maxEntries);
+	}
+	
+	/**
+	 * Set how long cached file attributes are trusted before being fetched again from the remote host
+	 * @param duration time to live, 0 to disable caching
+	 * @param unit unit of the duration
+	 */
+	public void setAttributeCacheTtl(long duration, TimeUnit unit) {
+		fileattrcache.setTtl(duration, unit);
+	}
+	
+	/**
+	 * Set how long a path found not to exist is reported as missing without asking the remote host again
+	 * @param duration time to live of negative entries, 0 to disable negative caching
+	 * @param unit unit of the duration
+	 */
+	public void setNegativeCacheTtl(long duration, TimeUnit unit) {
+		fileattrcache.setNegativeTtl(duration, unit);
+	}
+	
+	/**
+	 * @return hit and miss counters of the file attribute cache, including the cache of missing paths
+	 */
+	public SSHCacheStatistics getAttributeCacheStatistics() {
+		return fileattrcache.statistics();
+	}
+	
+	/**
+	 * Forget the cached attributes of a path and all paths below it, to be called after the remote
+	 * file was changed by other means than this file system
+	 */
+	public void invalidateAttributes(Path path) {
+		fileattrcache.invalidateTree(path.toString());
+	}
+	
+	/**
+	 * Cache the blocks of remote files read through byte channels in a memory mapped file of the local
+	 * temporary directory, so that repeated random reads of the same ranges are served locally.
+	 * Blocks are keyed by path, modification time and size of the file, the least recently used
+	 * block is evicted when the cache is full. Blocks cached before are dropped.
+	 * @param maxBytes size of the cache file, 0 to disable the block cache
+	 * @throws IOException if the cache file cannot be created
+	 */
+	public synchronized void setBlockCache(long maxBytes) throws IOException {
+		SSHBlockCache previous = blockcache;
+		blockcache = null;
+		if(previous != null) {
+			previous.close();
+		}
+		if(maxBytes > 0) {
+			blockcache = new SSHBlockCache(localDir, maxBytes, SSHBlockCache.DEFAULT_BLOCK_SIZE);
+		}
+	}
+	
+	/**
+	 * @return hit and miss counters of the block cache, null if it is disabled
+	 */
+	public SSHBlockCacheStatistics getBlockCacheStatistics() {
+		SSHBlockCache cache = blockcache;
+		return cache == null ? null : cache.statistics();
 	}
 	
 	public String localize(Path remote) throws IOException
 	{		
+		SSHLocalizationCache cache = localizationCache;
+		if(cache != null) {
+			// the local copy is only trusted against the current attributes
+			fileattrcache.invalidate(remote.toString());
+		}
 		PosixFileAttributes attr = this.getFileAttributes(remote, false);
+		SSHSpool spool = this.spool;
+		String spoolDir = spool == null ? this.localDir : spool.root().toString();
 		Path localPath;
 		
 		if(remote.getParent() != null) {
-			localPath = FileSystems.getDefault().getPath(this.localDir, remote.getParent().toString());
+			localPath = FileSystems.getDefault().getPath(spoolDir, remote.getParent().toString());
 			Files.createDirectories(localPath);
 		} else {
-			localPath = FileSystems.getDefault().getPath(this.localDir, remote.toString());
+			localPath = FileSystems.getDefault().getPath(spoolDir, remote.toString());
+		}
+		String local = FileSystems.getDefault().getPath(spoolDir, remote.toString()).toString();
+		if(attr.isDirectory()) {
+			if(cache != null) {
+				// only the files which changed since they were localized, local files missing remotely may be
+				// new files not committed yet and are kept
+				folderSync.download(remote.toString(), local, true, false);
+			} else {
+				folderSync.copyFrom(remote.toString(), local, true);
+			}
+		} else if(cache == null || !cache.isFresh(remote.toString(), attr, new File(local))) {
+			if(contentAddressed && attr.isRegularFile()) {
+				Path object = localizeContent(remote, attr, localPath, local, new SSHContentStore(digests, Paths.get(spoolDir)));
+				if(spool != null && object != null) {
+					spool.used(object);
+				}
+			} else {
+				download(remote, attr, localPath, local);
+			}
+			if(cache != null) {
+				cache.put(remote.toString(), attr, new File(local));
+			}
 		}
-		this.client.scpFrom(remote.toString(), localPath.toString(),attr.isDirectory());
-		return  FileSystems.getDefault().getPath(this.localDir, remote.toString()).toString();
+		if(spool != null) {
+			spool.used(Paths.get(local));
+		}
+		return local;
+	}
+
+	/**
+	 * Link a remote file to its object in the content store, downloading it and adding it to the store if the
+	 * object is missing
+	 * @return object of the store holding the file, null if the file could not be hashed or changed meanwhile
+	 */
+	private Path localizeContent(Path remote, PosixFileAttributes attr, Path localPath, String local, SSHContentStore store) throws IOException {
+		Path object = store.object(remote.toString());
+		if(object != null && store.link(object, Paths.get(local), attr.size())) {
+			return object;
+		}
+		download(remote, attr, localPath, local);
+		if(object == null) {
+			return null;
+		}
+		// the digest only holds for the downloaded content if the file did not change since it was hashed
+		fileattrcache.invalidate(remote.toString());
+		PosixFileAttributes after = getFileAttributes(remote, false);
+		if(after.size() != attr.size() || !after.lastModifiedTime().equals(attr.lastModifiedTime())
+				|| !Objects.equals(after.fileKey(), attr.fileKey()) || new File(local).length() != attr.size()) {
+			return null;
+		}
+		store.add(object, Paths.get(local));
+		return object;
+	}
+
+	/**
+	 * @return directory of the copies of the files uploaded by write-back, in the spool directory or the local
+	 * directory next to the localized files
+	 */
+	Path writeBackDir() {
+		SSHSpool spool = this.spool;
+		return Paths.get(spool == null ? this.localDir : spool.root().toString(), SSHWriteBack.DIRECTORY);
+	}
+
+	/**
+	 * Pin a localized file in the spool as long as it is reachable
+	 */
+	void hold(File file) {
+		SSHSpool spool = this.spool;
+		if(spool != null) {
+			spool.hold(file.toPath(), file);
+		}
+	}
+
+	/**
+	 * Keep the files localized with {@link #localize(Path)} in a store keyed by the digest of their content,
+	 * computed on the remote host with the fastest tool it has, see {@link Utils#getDigestAlgorithm()}. A file
+	 * whose content is in the store already is hard linked to it instead of being downloaded, so that
+	 * identical files at different paths or on different hosts localized into the same directory are
+	 * transferred and kept once. The store is in <code>.cas</code> of the spool directory, or of the temporary
+	 * directory without a spool, where its objects count once against the size of the spool with all their
+	 * links. A localized file is given its own copy before it is written through an
+	 * {@link SSHFileOutputStream}. Each download then costs hashing the remote file, whose digest is cached.
+	 * @param enabled whether localized files are deduplicated
+	 */
+	public void setContentStore(boolean enabled) {
+		this.contentAddressed = enabled;
+	}
+
+	/**
+	 * Localize files with {@link #localize(Path)}, and so with {@link SSHLinuxPath#toFile()}, into a spool
+	 * directory of at most maxBytes instead of the temporary directory, deleting the least recently used
+	 * localized files when it grows larger. A file is not deleted while an {@link SSHLinuxFile} of it, or of a
+	 * directory above it, is reachable, which includes a file written through an open
+	 * {@link SSHFileOutputStream}. The spool directory is scanned right away, so that files it holds from a
+	 * previous run count against its size, the least recently accessed first to be deleted.
+	 * @param root spool directory, created if missing, which should only hold localized files, null to localize
+	 * into the temporary directory without limit again
+	 * @param maxBytes most bytes held by the spool directory
+	 * @throws IOException if the spool directory cannot be created or scanned
+	 */
+	public void setSpool(String root, long maxBytes) throws IOException {
+		this.spool = root == null ? null : new SSHSpool(Paths.get(root), maxBytes);
+		if(localizationCache != null) {
+			// records of local copies in the previous directory
+			localizationCache = new SSHLocalizationCache();
+		}
+	}
+
+	private void download(Path remote, PosixFileAttributes attr, Path localPath, String local) throws IOException {
+		// the content shared with the content store is replaced, not written over
+		SSHContentStore.detach(Paths.get(local), false);
+		SSHResumableTransfer resumable = resumableTransfer;
+		if(resumable != null && attr.isRegularFile()) {
+			// a checkpoint is only trusted against the current size and modification time
+			fileattrcache.invalidate(remote.toString());
+			resumable.download(remote.toString(), this.getFileAttributes(remote, false), new File(local));
+			return;
+		}
+		SSHParallelTransfer parallel = parallelTransfer;
+		if(parallel != null && attr.size() >= parallelThreshold) {
+			parallel.download(remote.toString(), attr.size(), new File(local));
+			return;
+		}
+		this.client.scpFrom(remote.toString(), localPath.toString(), false);
+	}
+
+	/**
+	 * Keep a record of the files localized with {@link #localize(Path)}, and so by
+	 * {@link SSHLinuxPath#toFile()}, with the size, modification time and inode of the remote file, so that
+	 * a file is only transferred again if the remote file or its local copy changed since. A directory is
+	 * brought up to date by transferring only its files which changed, see {@link SSHFolderSync}, local files
+	 * missing remotely are kept as they may not be committed yet. On by default, each localization then costs a stat of the remote file.
+	 * @param enabled whether unchanged localized files are reused
+	 */
+	public void setLocalizationCache(boolean enabled) {
+		this.localizationCache = enabled ? new SSHLocalizationCache() : null;
+	}
+
+	/**
+	 * Compress folders transferred as a single tar stream, by {@link #localize(Path)},
+	 * {@link #commitFolderTo(String, String, boolean)} and {@link #syncFolderTo(String, String, boolean, boolean)},
+	 * with gzip where the remote host has it, which is on by default
+	 * @param enabled whether folder transfers are compressed
+	 */
+	public void setCompressedTransfers(boolean enabled) {
+		folderSync.setCompression(enabled);
+	}
+
+	/**
+	 * Download files of at least threshold bytes as ranges fetched concurrently over several channels,
+	 * written into a preallocated local file and verified against the size and MD5 digest of the remote
+	 * file. Applies to {@link #localize(Path)} and to streams of remote files. Likewise upload files
+	 * committed with {@link #commitFileTo(String, String)} as ranges written concurrently into a remote
+	 * temporary file, which is verified then renamed into place. The channel pool bounds the number of
+	 * ranges actually in flight.
+	 * @param parallelism number of ranges transferred at the same time, 1 to transfer over a single channel
+	 * @param chunkSize size of a range in bytes
+	 * @param threshold size in bytes from which a file is transferred in parallel
+	 */
+	public void setParallelTransfers(int parallelism, long chunkSize, long threshold) {
+		if(chunkSize <= 0) {
+			throw new IllegalArgumentException("chunkSize must be positive");
+		}
+		this.parallelThreshold = threshold;
+		this.parallelTransfer = parallelism > 1 ? new SSHParallelTransfer(this, parallelism, chunkSize) : null;
+	}
+
+	/**
+	 * Transfer regular files localized with {@link #localize(Path)} or committed with
+	 * {@link #commitFileTo(String, String)} in chunks, saving a checkpoint after each chunk so that a
+	 * transfer interrupted by a failure continues from the last verified chunk when it is retried.
+	 * A download is written to <code>name.part</code> next to the local file with its checkpoint in
+	 * <code>name.part.ckpt</code>, an upload to a hidden <code>.name.part</code> next to the remote file
+	 * with its checkpoint in the local directory. A transfer is only resumed if the source has the same
+	 * size and modification time as when it started and the partial copy matches the digest of the
+	 * checkpoint, it is started over otherwise. Takes precedence over parallel transfers.
+	 * @param enabled whether transfers are resumable
+	 */
+	public void setResumableTransfers(boolean enabled) {
+		this.resumableTransfer = enabled ? new SSHResumableTransfer(this, localDir, SSHResumableTransfer.DEFAULT_CHUNK_SIZE) : null;
+	}
+
+	/**
+	 * Upload files committed with {@link #commitFileTo(String, String)} over an existing remote file by
+	 * sending only the parts that differ from it, in the way of rsync, which also applies to
+	 * {@link SSHLinuxFile#commit(boolean)} and to closing a {@link SSHFileOutputStream}. The remote file is
+	 * rebuilt next to itself from its own blocks and the literal bytes sent, verified against the MD5 digest
+	 * of the local file and renamed into place. Requires <code>perl</code> on the remote host, files are
+	 * uploaded in full where it is missing or the remote file does not exist. Takes precedence over
+	 * resumable and parallel transfers.
+	 * @param enabled whether delta uploads are used
+	 */
+	public void setDeltaTransfers(boolean enabled) {
+		this.deltaTransfer = enabled ? new SSHDeltaTransfer(this) : null;
 	}
 
 	/**
@@ -699,8 +1592,242 @@ public class SSHLinuxFileSystem
 	 * @throws IOException
 	 */
 	void toOutputStream(String path, OutputStream out) throws IOException {
+		SSHParallelTransfer parallel = parallelTransfer;
+		if(parallel != null) {
+			PosixFileAttributes attr = getFileAttributes(getPath(path), false);
+			if(attr.isRegularFile() && attr.size() >= parallelThreshold) {
+				File local = File.createTempFile("ssh-download", ".tmp", new File(localDir));
+				try {
+					parallel.download(path, attr.size(), local);
+					try (InputStream in = new FileInputStream(local)) {
+						copy(in, out, Long.MAX_VALUE);
+					}
+				} finally {
+					local.delete();
+				}
+				return;
+			}
+		}
+		if(sftpEnabled) {
+			try (InputStream in = sftp.read(path)) {
+				copy(in, out, Long.MAX_VALUE);
+			}
+			return;
+		}
 		this.client.scpFrom(path, out);
 	}
+	/**
+	 * Open a stream reading a remote file as it is transferred, through SFTP if enabled, otherwise
+	 * through <code>cat</code> on an exec channel
+	 * @param path remote file
+	 * @return stream of the content of the file, holding a channel until closed
+	 * @throws IOException
+	 */
+	InputStream newInputStream(String path) throws IOException {
+		if(sftpEnabled) {
+			return sftp.read(path);
+		}
+		SSHRemoteProcess process = client.open(SSHInputStream.command(path), null);
+		process.getOutputStream().close();
+		return new SSHInputStream(process, path);
+	}
+
+	/**
+	 * Open a channel reading and writing a remote file at arbitrary positions, each access transferring
+	 * only the bytes asked for
+	 * @param path remote file
+	 * @param options as for {@link Files#newByteChannel(Path, Set, FileAttribute...)}, READ if empty
+	 * @return seekable channel on the remote file
+	 * @throws IOException
+	 */
+	public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options) throws IOException {
+		return new SSHLinuxByteChannel(this, path.toString(), options);
+	}
+
+	/**
+	 * Read up to len bytes at the given offset of a remote file, with SFTP if enabled, otherwise with
+	 * <code>dd</code> skipping to the offset on the remote host
+	 * @return number of bytes read, less than len only at the end of the file, -1 if offset is at or past the end
+	 * @throws NoSuchFileException if the file does not exist
+	 */
+	int readRange(String path, long offset, byte[] buf, int off, int len) throws IOException {
+		if(len == 0) {
+			return 0;
+		}
+		if(sftpEnabled) {
+			return sftp.read(path, offset, buf, off, len);
+		}
+		int total = 0;
+		try (SSHRemoteProcess process = client.open(rangeCommand(path, offset, len), null)) {
+			process.getOutputStream().close();
+			InputStream in = process.getInputStream();
+			int n;
+			while(total < len && (n = in.read(buf, off + total, len - total)) >= 0) {
+				total += n;
+			}
+			checkStatus(process.waitFor(), path, "read");
+		}
+		return total == 0 ? -1 : total;
+	}
+
+	/**
+	 * Stream up to length bytes at the given offset of a remote file into out, without holding them in memory.
+	 * The range is always read on its own exec channel, even with SFTP enabled, so that ranges read
+	 * concurrently do not share the window of the single SFTP channel.
+	 * @return number of bytes transferred, less than length only at the end of the file
+	 * @throws NoSuchFileException if the file does not exist
+	 */
+	long readRange(String path, long offset, long length, OutputStream out) throws IOException {
+		if(length == 0) {
+			return 0;
+		}
+		long total;
+		try (SSHRemoteProcess process = client.open(rangeCommand(path, offset, length), null)) {
+			process.getOutputStream().close();
+			total = copy(process.getInputStream(), out, length);
+			checkStatus(process.waitFor(), path, "read");
+		}
+		return total;
+	}
+
+	private static String rangeCommand(String path, long offset, long length) {
+		String quoted = quote(path);
+		return "test -e " + quoted + " || exit 2; exec dd if=" + quoted + " iflag=skip_bytes,count_bytes skip=" + offset
+				+ " count=" + length + " bs=" + Math.min(length, RANGE_BLOCK_SIZE) + " 2>/dev/null";
+	}
+
+	/**
+	 * Write len bytes at the given offset of a remote file, with SFTP if enabled, otherwise with
+	 * <code>dd</code> seeking to the offset on the remote host. The file is created if needed and
+	 * the bytes outside of the range are kept.
+	 */
+	void writeRange(String path, long offset, byte[] buf, int off, int len) throws IOException {
+		try {
+			if(sftpEnabled) {
+				sftp.write(path, offset, buf, off, len);
+				return;
+			}
+			writeRange(path, offset, new ByteArrayInputStream(buf, off, len));
+		} finally {
+			invalidateBlocks(path);
+		}
+	}
+
+	/**
+	 * Write all bytes of in at the given offset of a remote file, without holding them in memory.
+	 * The range is always written on its own exec channel, even with SFTP enabled, so that ranges written
+	 * concurrently do not share the window of the single SFTP channel.
+	 */
+	void writeRange(String path, long offset, InputStream in) throws IOException {
+		try {
+			String cmd = "exec dd of=" + quote(path) + " oflag=seek_bytes conv=notrunc seek=" + offset
+					+ " bs=" + RANGE_BLOCK_SIZE + " 2>/dev/null";
+			try (SSHRemoteProcess process = client.open(cmd, in)) {
+				checkStatus(process.waitFor(), path, "write");
+			}
+		} finally {
+			invalidateBlocks(path);
+		}
+	}
+
+	/**
+	 * Set the size of a remote file, cutting it or extending it with zeros
+	 */
+	void truncate(String path, long size) throws IOException {
+		try {
+			if(sftpEnabled) {
+				sftp.truncate(path, size);
+				return;
+			}
+			String quoted = quote(path);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			// no exit, which would end the persistent shell
+			client.exec("if test -e " + quoted + "; then truncate --no-create -s " + size + " -- " + quoted
+					+ " 2>/dev/null || echo failed; else echo missing; fi", out);
+			String result = out.toString("UTF-8").trim();
+			if(result.equals("missing")) {
+				throw new NoSuchFileException(path);
+			}
+			if(!result.isEmpty()) {
+				throw new IOException("Failed to truncate " + path);
+			}
+		} finally {
+			invalidateBlocks(path);
+		}
+	}
+
+	/**
+	 * Read at a position of a remote file through the block cache if enabled, otherwise straight from the remote host
+	 * @return number of bytes read into dst, -1 if position is at or past the end of the file
+	 */
+	int read(String path, long position, ByteBuffer dst) throws IOException {
+		SSHBlockCache cache = blockcache;
+		if(cache == null) {
+			int len = dst.remaining();
+			if(dst.hasArray()) {
+				int n = readRange(path, position, dst.array(), dst.arrayOffset() + dst.position(), len);
+				if(n > 0) {
+					((Buffer) dst).position(dst.position() + n);
+				}
+				return n;
+			}
+			byte[] buf = new byte[len];
+			int n = readRange(path, position, buf, 0, len);
+			if(n > 0) {
+				dst.put(buf, 0, n);
+			}
+			return n;
+		}
+		PosixFileAttributes attr = getFileAttributes(getPath(path), false);
+		return cache.read(path, attr.lastModifiedTime(), attr.size(), position, dst, this::readRange);
+	}
+
+	private void invalidateBlocks(String path) {
+		fileattrcache.invalidate(path);
+		SSHBlockCache cache = blockcache;
+		if(cache != null) {
+			cache.invalidate(path);
+		}
+	}
+
+	/**
+	 * Run a remote command on its own channel, stderr being discarded
+	 * @param operation what the command does, for the error message
+	 * @return output of the command
+	 * @throws IOException if the command fails
+	 */
+	String run(String cmd, String operation) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (SSHRemoteProcess process = client.open("{ " + cmd + "\n} 2>/dev/null", null)) {
+			process.getOutputStream().close();
+			copy(process.getInputStream(), out, Long.MAX_VALUE);
+			if(process.waitFor() != 0) {
+				throw new IOException("Failed to " + operation);
+			}
+		}
+		return out.toString("UTF-8");
+	}
+
+	/**
+	 * @return MD5 digest of a remote file computed on the remote host, in hexadecimal
+	 */
+	String md5(String path) throws IOException {
+		String[] fields = run("md5sum < " + quote(path), "compute MD5 of " + path).trim().split("\\s+");
+		if(fields.length == 0 || fields[0].length() != 32) {
+			throw new IOException("Incomplete information of MD5.");
+		}
+		return fields[0];
+	}
+
+	private static void checkStatus(int status, String path, String operation) throws IOException {
+		if(status == 2) {
+			throw new NoSuchFileException(path);
+		}
+		if(status != 0) {
+			throw new IOException("Failed to " + operation + " " + path + ", exit status " + status);
+		}
+	}
+
 	/**
 	 * Upload a file from an input stream, if the file does not exist, will create a file first
 	 * @param path remote path
@@ -709,7 +1836,32 @@ public class SSHLinuxFileSystem
 	 * @throws IOException
 	 */
 	void fromInputStream(SSHLinuxPath path, InputStream in, long size) throws IOException {
+		if(sftpEnabled) {
+			try (OutputStream out = sftp.write(path.toString())) {
+				copy(in, out, size);
+			}
+			fileattrcache.invalidate(path.toString());
+			return;
+		}
 		PosixFileAttributes attr = this.getFileAttributes(path, true);
-		this.client.scpTo(in, path.toString(), size, attr.permissions(), new ScpTimestamp(System.currentTimeMillis(), System.currentTimeMillis()));
+		try {
+			this.client.scpTo(in, path.toString(), size, attr.permissions(), new ScpTimestamp(System.currentTimeMillis(), System.currentTimeMillis()));
+		} finally {
+			fileattrcache.invalidate(path.toString());
+		}
+	}
+
+	private static long copy(InputStream in, OutputStream out, long limit) throws IOException {
+		byte[] buffer = new byte[32 * 1024];
+		long total = 0;
+		while(total < limit) {
+			int n = in.read(buffer, 0, (int) Math.min(buffer.length, limit - total));
+			if(n < 0) {
+				break;
+			}
+			out.write(buffer, 0, n);
+			total += n;
+		}
+		return total;
 	}
 }
\ No newline at end of file
@@ -7,6 +7,7 @@ import java.nio.file.WatchEvent.Modifier;
 import java.nio.file.attribute.PosixFileAttributes;
 import java.io.*;
 import java.net.URI;
+import java.nio.channels.SeekableByteChannel;
 import java.util.*;
 /**
  * SSH Linux Path
@@ -567,7 +568,9 @@ public class SSHLinuxPath implements Path {
 	public File toFile() {
 		try {
 			String local = this.fs.localize(this);
-			return new SSHLinuxFile(this, local);
+			SSHLinuxFile file = new SSHLinuxFile(this, local);
+			this.fs.hold(file);
+			return file;
 		} catch (IOException e) {
 			return null;
 		}
@@ -738,15 +741,22 @@ public class SSHLinuxPath implements Path {
     }
 
     /**
-     * Get input stream from SSH Linux Path.
+     * Get input stream from SSH Linux Path. The content is streamed from the remote host while it is read,
+     * the stream must be closed to release its channel.
      * @return Input stream used to read content of remote file
      * @throws IOException
      */
     public InputStream getInputStream() throws IOException {
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
-		this.fs.toOutputStream(new String(path), out);
-		byte[] buffer = out.toByteArray();
-		return new ByteArrayInputStream(buffer);
+		return this.fs.newInputStream(new String(path));
+	}
+	/**
+	 * Open a seekable channel on the remote file, reading and writing only the ranges accessed
+	 * @param options as for {@link Files#newByteChannel(Path, OpenOption...)}, READ if none
+	 * @return Channel used to access the remote file at arbitrary positions
+	 * @throws IOException
+	 */
+	public SeekableByteChannel newByteChannel(OpenOption... options) throws IOException {
+		return this.fs.newByteChannel(this, new HashSet<OpenOption>(Arrays.asList(options)));
 	}
 	/**
 	 * Get output stream from SSH Linux Path
@@ -0,0 +1,199 @@
+package com.teradyne.adc.fs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
+import java.time.Instant;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Package private parser of the file records printed by GNU <code>stat</code> and <code>find</code>.
+ * Both print the same fields in the same order, each record being terminated by a NUL:
+ * <pre>
+ * mode uid gid user group size dev inode atime mtime ctime path
+ * -rw-r--r-- 0 0 root root 5 65024 12042293 1792312429.110950478 1792312428.302950429 1792312428.302950429 /root/a b.txt
+ * </pre>
+ * The times are seconds since the epoch with a fraction, the path is last so that it may contain spaces.
+ * @author wangho
+ *
+ */
+final class SSHLinuxStat {
+
+	/**
+	 * Format for <code>stat --printf</code>, does not follow symbolic links
+	 */
+	final static String STAT_FORMAT = "%A %u %g %U %G %s %d %i %.9X %.9Y %.9Z %n\\0";
+
+	/**
+	 * Format for <code>find -printf</code>, %U/%u are swapped compared to stat
+	 */
+	final static String FIND_FORMAT = "%M %U %G %u %g %s %D %i %A@ %T@ %C@ %p\\0";
+
+	private final static int FIELDS = 11;
+
+	private SSHLinuxStat() { }
+
+	/**
+	 * One parsed record
+	 */
+	static final class Entry {
+		final String path;
+		final SSHLinuxFileAttributes attributes;
+
+		Entry(String path, SSHLinuxFileAttributes attributes) {
+			this.path = path;
+			this.attributes = attributes;
+		}
+	}
+
+	/**
+	 * Reads NUL terminated records one at a time from a stream, so that arbitrarily long outputs
+	 * can be processed in constant memory
+	 */
+	static final class RecordReader {
+		private final InputStream in;
+		private final byte[] buf = new byte[8192];
+		private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+		private int pos;
+		private int len;
+
+		RecordReader(InputStream in) {
+			this.in = in;
+		}
+
+		/**
+		 * @return next record without its NUL, null at the end of the stream
+		 */
+		String next() throws IOException {
+			record.reset();
+			for(;;) {
+				if(pos == len) {
+					len = in.read(buf);
+					pos = 0;
+					if(len <= 0) {
+						len = 0;
+						// a last record without NUL is a truncated one
+						return null;
+					}
+				}
+				int start = pos;
+				while(pos < len && buf[pos] != 0) {
+					pos++;
+				}
+				record.write(buf, start, pos - start);
+				if(pos < len) {
+					pos++;
+					return record.toString("UTF-8");
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return command reading NUL separated paths from its stdin and printing one record per existing path,
+	 * xargs splitting them into as many <code>stat</code> invocations as the argument size limit requires
+	 */
+	static String bulkStatCommand() {
+		return "xargs -0 stat --printf '" + STAT_FORMAT + "' -- 2>/dev/null";
+	}
+
+	/**
+	 * @return <code>stat</code> command printing one record per given path
+	 */
+	static String statCommand(String... paths) {
+		StringBuilder sb = new StringBuilder("stat --printf '").append(STAT_FORMAT).append("' --");
+		for(String path : paths) {
+			sb.append(' ').append(SSHLinuxFileSystem.quote(path));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Parse one record without its terminating NUL
+	 * @throws IOException if the record does not have all fields
+	 */
+	static Entry parse(String record) throws IOException {
+		String[] fields = new String[FIELDS];
+		int pos = 0;
+		for(int i = 0; i < FIELDS; i++) {
+			int space = record.indexOf(' ', pos);
+			if(space < 0) {
+				throw new IOException("Incomplete information of file or directory: " + record);
+			}
+			fields[i] = record.substring(pos, space);
+			pos = space + 1;
+		}
+		String path = record.substring(pos);
+		String mode = fields[0];
+		if(mode.length() < 10) {
+			throw new IOException("Unexpected file mode " + mode + " of: " + path);
+		}
+		try {
+			int uid = Integer.parseInt(fields[1]);
+			int gid = Integer.parseInt(fields[2]);
+			SSHLinuxFileAttributes attr = new SSHLinuxFileAttributes()
+					.setIsDirectory(mode.charAt(0) == 'd')
+					.setIsSymbolLink(mode.charAt(0) == 'l')
+					.setIsRegularFile(mode.charAt(0) == '-')
+					.setAttributes(permissions(mode))
+					.setUser(new SSHLinuxFileSystem.User(uid, fields[3]))
+					.setGroup(new SSHLinuxFileSystem.Group(gid, fields[4]))
+					.setSize(Long.parseLong(fields[5]))
+					.setFileKey(new SSHLinuxFileKey(Long.parseLong(fields[6]), Long.parseLong(fields[7])))
+					.setLastAccesstime(time(fields[8]))
+					.setLastModifiedTime(time(fields[9]))
+					.setLastChangeTime(time(fields[10]));
+			return new Entry(path, attr);
+		} catch (NumberFormatException e) {
+			throw new IOException("Incomplete information of file or directory: " + path, e);
+		}
+	}
+
+	/**
+	 * Permissions from symbolic mode as printed by ls -l, e.g. -rwsr-xr-t
+	 */
+	static Set<PosixFilePermission> permissions(String mode) {
+		Set<PosixFilePermission> permissions = EnumSet.noneOf(PosixFilePermission.class);
+		if(mode.charAt(1) == 'r') permissions.add(PosixFilePermission.OWNER_READ);
+		if(mode.charAt(2) == 'w') permissions.add(PosixFilePermission.OWNER_WRITE);
+		if(isExecute(mode.charAt(3))) permissions.add(PosixFilePermission.OWNER_EXECUTE);
+		if(mode.charAt(4) == 'r') permissions.add(PosixFilePermission.GROUP_READ);
+		if(mode.charAt(5) == 'w') permissions.add(PosixFilePermission.GROUP_WRITE);
+		if(isExecute(mode.charAt(6))) permissions.add(PosixFilePermission.GROUP_EXECUTE);
+		if(mode.charAt(7) == 'r') permissions.add(PosixFilePermission.OTHERS_READ);
+		if(mode.charAt(8) == 'w') permissions.add(PosixFilePermission.OTHERS_WRITE);
+		if(isExecute(mode.charAt(9))) permissions.add(PosixFilePermission.OTHERS_EXECUTE);
+		return permissions;
+	}
+
+	// lower case setuid/setgid/sticky letters mean the execute bit is set as well
+	private static boolean isExecute(char c) {
+		return c == 'x' || c == 's' || c == 't';
+	}
+
+	/**
+	 * Parse seconds since the epoch with an optional fraction of any number of digits
+	 */
+	static FileTime time(String value) {
+		int dot = value.indexOf('.');
+		if(dot < 0) {
+			return FileTime.from(Instant.ofEpochSecond(Long.parseLong(value)));
+		}
+		long seconds = Long.parseLong(value.substring(0, dot));
+		long nanos = 0;
+		int digits = 0;
+		for(int i = dot + 1; i < value.length() && digits < 9; i++, digits++) {
+			nanos = nanos * 10 + (value.charAt(i) - '0');
+		}
+		for(; digits < 9; digits++) {
+			nanos *= 10;
+		}
+		if(value.charAt(0) == '-') {
+			nanos = -nanos;
+		}
+		return FileTime.from(Instant.ofEpochSecond(seconds, nanos));
+	}
+}
@@ -0,0 +1,202 @@
+package com.teradyne.adc.fs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitor;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Package private walker of a remote file tree. The whole tree is listed by a single <code>find -printf</code>
+ * whose NUL separated records are read as they arrive, so that a tree of any size costs one command and
+ * one streaming pass instead of one command per directory and file. find lists the tree depth first with
+ * every directory before its entries, which is the order {@link FileVisitor} expects, the end of a directory
+ * being detected when a record is no longer below it. The attributes of every record are put into the
+ * attribute cache of the file system.
+ * @author wangho
+ *
+ */
+class SSHLinuxTreeWalker implements Closeable {
+
+	private final SSHLinuxFileSystem fs;
+	private final SSHRemoteProcess process;
+	private final SSHLinuxStat.RecordReader reader;
+	private final String start;
+	private boolean empty = true;
+
+	SSHLinuxTreeWalker(SSHLinuxFileSystem fs, SSHRemoteProcess process, String start) {
+		this.fs = fs;
+		this.process = process;
+		this.reader = new SSHLinuxStat.RecordReader(process.getInputStream());
+		this.start = start;
+	}
+
+	/**
+	 * @param start first path of the walk, without trailing slash
+	 * @param maxDepth maximum number of levels below start to list
+	 * @param followLinks whether symbolic links to directories are descended into
+	 * @param prune glob patterns of file names, matched like <code>find -name</code>, whose entries are
+	 * neither listed nor descended into, may be null
+	 * @return the find command listing the tree
+	 */
+	static String command(String start, int maxDepth, boolean followLinks, Collection<String> prune) {
+		StringBuilder sb = new StringBuilder("find ");
+		if(followLinks) {
+			sb.append("-L ");
+		}
+		sb.append(SSHLinuxFileSystem.quote(start));
+		if(maxDepth < Integer.MAX_VALUE) {
+			sb.append(" -maxdepth ").append(maxDepth);
+		}
+		if(prune != null && !prune.isEmpty()) {
+			sb.append(" \\(");
+			String or = "";
+			for(String name : prune) {
+				sb.append(or).append(" -name ").append(SSHLinuxFileSystem.quote(name));
+				or = " -o";
+			}
+			sb.append(" \\) -prune -o");
+		}
+		return sb.append(" -printf '").append(SSHLinuxStat.FIND_FORMAT).append("' 2>/dev/null").toString();
+	}
+
+	/**
+	 * @return next record of the walk, null once all were read
+	 * @throws NoSuchFileException if the start of the walk does not exist
+	 */
+	SSHLinuxStat.Entry next() throws IOException {
+		String record = reader.next();
+		if(record == null) {
+			// find fails without output when the start does not exist
+			if(empty && process.waitFor() != 0) {
+				throw new NoSuchFileException(start);
+			}
+			return null;
+		}
+		empty = false;
+		SSHLinuxStat.Entry entry = SSHLinuxStat.parse(record);
+		fs.cacheAttributes(entry.path, entry.attributes);
+		return entry;
+	}
+
+	/**
+	 * Walk the tree calling back the visitor, with the same semantic as {@link java.nio.file.Files#walkFileTree}
+	 * except that directories failing to be read are silently skipped by find
+	 * @param maxDepth directories at this depth are passed to {@link FileVisitor#visitFile}
+	 */
+	void walk(FileVisitor<? super Path> visitor, int maxDepth) throws IOException {
+		// directories whose entries are being visited, innermost first
+		Deque<String> open = new ArrayDeque<>();
+		String skip = null;
+		for(;;) {
+			SSHLinuxStat.Entry entry;
+			try {
+				entry = next();
+			} catch (NoSuchFileException e) {
+				visitor.visitFileFailed(fs.getPath(start), e);
+				return;
+			}
+			if(entry == null) {
+				break;
+			}
+			if(skip != null && entry.path.startsWith(skip)) {
+				continue;
+			}
+			skip = null;
+			String parent = SSHAttributeCache.parent(entry.path);
+			while(!open.isEmpty() && !open.peek().equals(parent)) {
+				String dir = open.pop();
+				FileVisitResult result = visitor.postVisitDirectory(fs.getPath(dir), null);
+				if(result == FileVisitResult.TERMINATE) {
+					return;
+				}
+				if(result == FileVisitResult.SKIP_SIBLINGS) {
+					skip = prefix(SSHAttributeCache.parent(dir));
+				}
+			}
+			if(skip != null && entry.path.startsWith(skip)) {
+				continue;
+			}
+			skip = null;
+			Path path = fs.getPath(entry.path);
+			FileVisitResult result;
+			if(entry.attributes.isDirectory() && open.size() < maxDepth) {
+				result = visitor.preVisitDirectory(path, entry.attributes);
+				if(result == FileVisitResult.CONTINUE) {
+					open.push(entry.path);
+				} else if(result == FileVisitResult.SKIP_SUBTREE) {
+					skip = prefix(entry.path);
+				}
+			} else {
+				result = visitor.visitFile(path, entry.attributes);
+			}
+			if(result == FileVisitResult.TERMINATE) {
+				return;
+			}
+			if(result == FileVisitResult.SKIP_SIBLINGS) {
+				if(parent == null || open.isEmpty()) {
+					return;
+				}
+				skip = prefix(parent);
+			}
+		}
+		while(!open.isEmpty()) {
+			if(visitor.postVisitDirectory(fs.getPath(open.pop()), null) == FileVisitResult.TERMINATE) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return lazy stream of the paths of the walk, closing it closes this walker
+	 */
+	Stream<Path> stream() {
+		Iterator<Path> it = new Iterator<Path>() {
+			private SSHLinuxStat.Entry next;
+
+			@Override
+			public boolean hasNext() {
+				if(next == null) {
+					try {
+						next = SSHLinuxTreeWalker.this.next();
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+				return next != null;
+			}
+
+			@Override
+			public Path next() {
+				if(!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				Path path = fs.getPath(next.path);
+				next = null;
+				return path;
+			}
+		};
+		Spliterator<Path> spliterator = Spliterators.spliteratorUnknownSize(it, Spliterator.DISTINCT | Spliterator.NONNULL);
+		return StreamSupport.stream(spliterator, false).onClose(this::close);
+	}
+
+	@Override
+	public void close() {
+		process.close();
+	}
+
+	private static String prefix(String dir) {
+		return dir.endsWith("/") ? dir : dir + "/";
+	}
+}
@@ -0,0 +1,57 @@
+package com.teradyne.adc.fs;
+
+import java.io.File;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Package private record of the remote files localized into the local directory. The size, modification
+ * time and inode of the remote file are recorded with the size and modification time of its local copy,
+ * so that a file is not transferred again as long as neither the remote file nor its local copy changed.
+ * A remote file replaced by another one, by a rename for instance, has another inode even if it has the
+ * same size and modification time.
+ * @author wangho
+ *
+ */
+class SSHLocalizationCache {
+
+	private static final class Entry {
+		private final long size;
+		private final FileTime mtime;
+		private final Object fileKey;
+		private final long localSize;
+		private final long localMtime;
+
+		Entry(long size, FileTime mtime, Object fileKey, long localSize, long localMtime) {
+			this.size = size;
+			this.mtime = mtime;
+			this.fileKey = fileKey;
+			this.localSize = localSize;
+			this.localMtime = localMtime;
+		}
+	}
+
+	private final Map<String, Entry> entries = new HashMap<>();
+
+	/**
+	 * @param attr current attributes of the remote file
+	 * @return whether the local copy of the remote file is up to date
+	 */
+	synchronized boolean isFresh(String remote, PosixFileAttributes attr, File local) {
+		Entry entry = entries.get(remote);
+		return entry != null && entry.size == attr.size() && entry.mtime.equals(attr.lastModifiedTime())
+				&& Objects.equals(entry.fileKey, attr.fileKey()) && local.isFile() && local.length() == entry.localSize
+				&& local.lastModified() == entry.localMtime;
+	}
+
+	/**
+	 * Record a remote file just localized
+	 * @param attr attributes of the remote file when it was transferred
+	 */
+	synchronized void put(String remote, PosixFileAttributes attr, File local) {
+		entries.put(remote, new Entry(attr.size(), attr.lastModifiedTime(), attr.fileKey(), local.length(), local.lastModified()));
+	}
+}
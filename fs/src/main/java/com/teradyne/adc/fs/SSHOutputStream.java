@@ -1,39 +1,91 @@
 package com.teradyne.adc.fs;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
 /**
- * Package private because it can only be created by instance of SSHLinuxPath
+ * Package private because it can only be created by instance of SSHLinuxPath.
+ * Bytes are piped to <code>cat</code> on an exec channel, or to an SFTP write handle if enabled, as they are
+ * written, so that writing a file of any size takes constant memory and a single transfer. The remote file
+ * is opened, and truncated, on the first write, flush or close, and is complete once the stream is closed.
  * @author wangho
  *
  */
-class SSHOutputStream extends ByteArrayOutputStream {
+class SSHOutputStream extends OutputStream {
+
+	private final SSHLinuxPath path;
+	private final SSHLinuxFileSystem fs;
+	private OutputStream out;
+	private SSHRemoteProcess process;
+	private boolean closed;
 
-	private SSHLinuxPath path = null;
-	private final static int redundantSize = 5000; // Currently set to 5000 because it is fastest by experience
-	
 	SSHOutputStream(SSHLinuxPath path) {
-		super();
 		this.path = path;
+		this.fs = (SSHLinuxFileSystem) path.getFileSystem();
 	}
 
-	SSHOutputStream(SSHLinuxPath path, int size) {
-		super(size);
-		this.path = path;
+	/**
+	 * @return command writing its stdin to the file
+	 */
+	static String command(String path) {
+		return "cat 2>/dev/null > " + SSHLinuxFileSystem.quote(path);
 	}
+
+	@Override
+	public void write(int b) throws IOException {
+		out().write(b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		out().write(b, off, len);
+	}
+
 	/**
-	 * override flush to make sure the stream is flushed to remote system
+	 * Send the bytes written so far to the remote host without waiting for them to be written
 	 */
 	@Override
 	public void flush() throws IOException {
-		super.flush();
-		if(this.path != null) {
-			byte[] validBuf = new byte[this.size() + redundantSize];
-			System.arraycopy(buf, 0, validBuf, 0, this.size());
-			InputStream in = new ByteArrayInputStream(validBuf);
-			((SSHLinuxFileSystem)path.getFileSystem()).fromInputStream(path, in, this.size());
+		out().flush();
+	}
+
+	/**
+	 * Finish the upload and wait for the remote file to be written
+	 * @throws IOException if the remote file could not be written
+	 */
+	@Override
+	public void close() throws IOException {
+		if(closed) {
+			return;
+		}
+		try {
+			out().close();
+			if(process != null) {
+				int status = process.waitFor();
+				if(status != 0) {
+					throw new IOException("Failed to write " + path + ", exit status " + status);
+				}
+			}
+		} finally {
+			closed = true;
+			if(process != null) {
+				process.close();
+			}
+			fs.invalidate(path.toString());
+		}
+	}
+
+	private OutputStream out() throws IOException {
+		if(closed) {
+			throw new IOException("Stream closed");
+		}
+		if(out == null) {
+			if(fs.isSftpEnabled()) {
+				out = fs.sftp().write(path.toString());
+			} else {
+				process = fs.open(command(path.toString()), null);
+				out = process.getOutputStream();
+			}
 		}
+		return out;
 	}
 }
@@ -0,0 +1,310 @@
+package com.teradyne.adc.fs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Package private transfer of a large file split into ranges moved concurrently, each on its own channel.
+ * A single channel is limited to its window size per round trip, so several of them are needed to fill
+ * a link with a high bandwidth delay product. Ranges are written at their position into a preallocated
+ * file, local when downloading and remote when uploading, and the result is verified against the size
+ * and the MD5 digest of the source.
+ * @author wangho
+ *
+ */
+class SSHParallelTransfer {
+
+	final static int DEFAULT_PARALLELISM = 4;
+	final static long DEFAULT_CHUNK_SIZE = 16L * 1024 * 1024;
+	final static long DEFAULT_THRESHOLD = 64L * 1024 * 1024;
+
+	private final SSHLinuxFileSystem fs;
+	private final int parallelism;
+	private final long chunkSize;
+
+	SSHParallelTransfer(SSHLinuxFileSystem fs, int parallelism, long chunkSize) {
+		this.fs = fs;
+		this.parallelism = parallelism;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Download a remote file into a local file, replacing it
+	 * @param size size of the remote file
+	 * @throws IOException if a range fails or the result does not match the remote file
+	 */
+	void download(String remote, long size, File local) throws IOException {
+		File parent = local.getAbsoluteFile().getParentFile();
+		if(parent != null) {
+			parent.mkdirs();
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(local, "rw")) {
+			raf.setLength(size);
+			FileChannel channel = raf.getChannel();
+			ExecutorService executor = newExecutor();
+			try {
+				// the remote digest is computed while the ranges are transferred
+				Future<String> remoteMD5 = executor.submit(() -> fs.md5(remote));
+				List<Future<?>> ranges = new ArrayList<>();
+				for(long offset = 0; offset < size; offset += chunkSize) {
+					final long start = offset;
+					final long length = Math.min(chunkSize, size - offset);
+					ranges.add(executor.submit(() -> {
+						long n = fs.readRange(remote, start, length, new PositionalOutputStream(channel, start));
+						if(n != length) {
+							throw new IOException("Short read of " + remote + " at " + start + ": " + n + " of " + length + " bytes, file changed during transfer");
+						}
+						return null;
+					}));
+				}
+				await(ranges);
+				channel.force(false);
+				verify(remote, size, local, await(remoteMD5));
+			} finally {
+				executor.shutdownNow();
+			}
+		} catch (IOException | RuntimeException e) {
+			local.delete();
+			throw e;
+		}
+	}
+
+	/**
+	 * Upload a local file to a remote file, replacing it atomically. The ranges are written into a
+	 * temporary file next to the target, which is renamed over the target once its size and MD5 digest
+	 * match those of the local file, so that the target is never seen partially written.
+	 * @param remote path of the remote file, not of its directory
+	 * @throws IOException if a range fails or the result does not match the local file
+	 */
+	void upload(File local, String remote) throws IOException {
+		long size = local.length();
+		String parent = SSHAttributeCache.parent(remote);
+		String temp = (parent == null ? "" : parent.equals("/") ? "/" : parent + "/") + "." + SSHAttributeCache.fileName(remote)
+				+ "." + UUID.randomUUID().toString().substring(0, 8) + ".part";
+		String quotedTemp = SSHLinuxFileSystem.quote(temp);
+		String quotedRemote = SSHLinuxFileSystem.quote(remote);
+		// preallocated so that the ranges can be written in any order
+		fs.run(": > " + quotedTemp + " && truncate -s " + size + " -- " + quotedTemp, "create " + temp);
+		boolean renamed = false;
+		try (FileInputStream in = new FileInputStream(local)) {
+			FileChannel channel = in.getChannel();
+			ExecutorService executor = newExecutor();
+			try {
+				// the local digest is computed while the ranges are transferred
+				Future<String> localMD5 = executor.submit(() -> localMD5(local));
+				List<Future<?>> ranges = new ArrayList<>();
+				for(long offset = 0; offset < size; offset += chunkSize) {
+					final long start = offset;
+					final long length = Math.min(chunkSize, size - offset);
+					ranges.add(executor.submit(() -> {
+						fs.writeRange(temp, start, new PositionalInputStream(channel, start, length));
+						return null;
+					}));
+				}
+				await(ranges);
+				String expected = await(localMD5);
+				String[] result = fs.run("stat -c %s -- " + quotedTemp + " && md5sum < " + quotedTemp, "verify " + temp).trim().split("\\s+");
+				if(result.length < 2 || !result[0].equals(String.valueOf(size))) {
+					throw new IOException("Size mismatch of " + temp + " uploaded from " + local + ": " + result[0] + " instead of " + size);
+				}
+				if(!result[1].equalsIgnoreCase(expected)) {
+					throw new IOException("MD5 mismatch of " + temp + " uploaded from " + local + ": " + result[1] + " instead of " + expected);
+				}
+			} finally {
+				executor.shutdownNow();
+			}
+			fs.run(chmod(local, quotedRemote, quotedTemp) + " && mv -f -- " + quotedTemp + " " + quotedRemote,
+					"rename " + temp + " to " + remote);
+			renamed = true;
+		} finally {
+			if(!renamed) {
+				try {
+					fs.run("rm -f -- " + quotedTemp, "remove " + temp);
+				} catch (IOException e) {
+					// the failure of the upload is reported
+				}
+			}
+			fs.invalidate(temp);
+			fs.invalidate(remote);
+		}
+	}
+
+	private void verify(String remote, long size, File local, String expected) throws IOException {
+		if(local.length() != size) {
+			throw new IOException("Size mismatch of " + local + ": " + local.length() + " instead of " + size);
+		}
+		String actual = localMD5(local);
+		if(!actual.equalsIgnoreCase(expected)) {
+			throw new IOException("MD5 mismatch of " + local + " downloaded from " + remote + ": " + actual + " instead of " + expected);
+		}
+	}
+
+	/**
+	 * @return command giving a remote temp file the permissions scp leaves on the target: those of the file it
+	 * replaces, or of the local file for a new one
+	 */
+	static String chmod(File local, String quotedRemote, String quotedTemp) throws IOException {
+		return "{ test -e " + quotedRemote + " && chmod --reference=" + quotedRemote + " -- " + quotedTemp
+				+ " || chmod " + mode(local) + " -- " + quotedTemp + "; }";
+	}
+
+	/**
+	 * @return permissions of a local file in octal, for <code>chmod</code>, guessed from whether it is
+	 * executable where the local file system has no POSIX permissions
+	 */
+	static String mode(File file) throws IOException {
+		Path path = file.toPath();
+		if(!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+			return Files.isExecutable(path) ? "755" : "644";
+		}
+		int mode = 0;
+		for(PosixFilePermission permission : Files.getPosixFilePermissions(path)) {
+			mode |= 0400 >> permission.ordinal();
+		}
+		return Integer.toOctalString(mode);
+	}
+
+	static String localMD5(File file) throws IOException {
+		MessageDigest md = newMD5();
+		try (InputStream in = new FileInputStream(file)) {
+			byte[] buf = new byte[64 * 1024];
+			int n;
+			while((n = in.read(buf)) >= 0) {
+				md.update(buf, 0, n);
+			}
+		}
+		return hex(md.digest());
+	}
+
+	static MessageDigest newMD5() throws IOException {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	static String hex(byte[] digest) {
+		StringBuilder sb = new StringBuilder();
+		for(byte b : digest) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+
+	private ExecutorService newExecutor() {
+		// one more thread for the remote digest
+		return Executors.newFixedThreadPool(parallelism + 1, r -> {
+			Thread t = new Thread(r, "SSHParallelTransfer");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	private static void await(List<Future<?>> futures) throws IOException {
+		for(Future<?> future : futures) {
+			await(future);
+		}
+	}
+
+	private static <T> T await(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while transferring");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if(cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Reads a range of a file channel shared with other readers
+	 */
+	static class PositionalInputStream extends InputStream {
+		private final FileChannel channel;
+		private long position;
+		private long remaining;
+
+		PositionalInputStream(FileChannel channel, long position, long length) {
+			this.channel = channel;
+			this.position = position;
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(remaining <= 0) {
+				return -1;
+			}
+			int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), position);
+			if(n < 0) {
+				// the file shrank, the verification reports it
+				remaining = 0;
+				return -1;
+			}
+			position += n;
+			remaining -= n;
+			return n;
+		}
+	}
+
+	/**
+	 * Writes sequentially at a position of a file channel shared with other writers
+	 */
+	static class PositionalOutputStream extends OutputStream {
+		private final FileChannel channel;
+		private long position;
+
+		PositionalOutputStream(FileChannel channel, long position) {
+			this.channel = channel;
+			this.position = position;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+			while(buf.hasRemaining()) {
+				position += channel.write(buf, position);
+			}
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package com.teradyne.adc.fs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.EnumSet;
+
+import org.apache.sshd.client.channel.ChannelExec;
+import org.apache.sshd.client.channel.ClientChannelEvent;
+
+/**
+ * Package private handle on a command running on its own exec channel, whose stdout is read as a stream
+ * while the command is still running instead of being collected once it has finished. Reading is flow
+ * controlled by the SSH channel window, so the remote command is throttled when the reader is slow.
+ * @author wangho
+ *
+ */
+class SSHRemoteProcess implements Closeable {
+
+	private final ChannelExec channel;
+	private final Runnable onClose;
+	private boolean closed;
+
+	/**
+	 * @param channel exec channel, not opened yet
+	 * @param stdin stream pumped to the stdin of the command, null to write it through {@link #getOutputStream()}
+	 * @param onClose run once when this process is closed
+	 */
+	SSHRemoteProcess(ChannelExec channel, InputStream stdin, Runnable onClose) throws IOException {
+		this.channel = channel;
+		this.onClose = onClose;
+		if(stdin != null) {
+			channel.setIn(stdin);
+		}
+		try {
+			channel.open().verify();
+		} catch (IOException | RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return stdout of the command
+	 */
+	InputStream getInputStream() {
+		return channel.getInvertedOut();
+	}
+
+	/**
+	 * @return stdin of the command, closing it sends EOF
+	 */
+	OutputStream getOutputStream() {
+		return channel.getInvertedIn();
+	}
+
+	/**
+	 * @return stderr of the command
+	 */
+	InputStream getErrorStream() {
+		return channel.getInvertedErr();
+	}
+
+	/**
+	 * Wait for the command to exit
+	 * @return its exit status, -1 if the server did not report one
+	 */
+	int waitFor() {
+		channel.waitFor(EnumSet.of(ClientChannelEvent.EXIT_STATUS, ClientChannelEvent.CLOSED), 0);
+		Integer status = channel.getExitStatus();
+		return status == null ? -1 : status;
+	}
+
+	/**
+	 * Close the channel, killing the command if it is still running
+	 */
+	@Override
+	public synchronized void close() {
+		if(closed) {
+			return;
+		}
+		closed = true;
+		try {
+			channel.close(false);
+		} finally {
+			onClose.run();
+		}
+	}
+}
@@ -0,0 +1,274 @@
+package com.teradyne.adc.fs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Properties;
+import java.util.UUID;
+
+/**
+ * Package private transfer of a file in chunks, recording after each chunk how far it got in a checkpoint
+ * file, so that a transfer interrupted by a dropped connection continues where it stopped instead of from
+ * the first byte. A checkpoint holds the offset reached, the size and modification time of the source and
+ * the MD5 digest of the bytes transferred so far. A transfer is only resumed if the source did not change
+ * and the partial copy still has that digest, the complete copy is verified against the digest of the
+ * source before it replaces the target.
+ * @author wangho
+ *
+ */
+class SSHResumableTransfer {
+
+	final static long DEFAULT_CHUNK_SIZE = 8L * 1024 * 1024;
+
+	private final SSHLinuxFileSystem fs;
+	private final String localDir;
+	private final long chunkSize;
+
+	SSHResumableTransfer(SSHLinuxFileSystem fs, String localDir, long chunkSize) {
+		this.fs = fs;
+		this.localDir = localDir;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Download a remote file into a local file through <code>local.part</code>, whose checkpoint is
+	 * <code>local.part.ckpt</code>
+	 * @param attr current attributes of the remote file
+	 */
+	void download(String remote, PosixFileAttributes attr, File local) throws IOException {
+		File part = new File(local.getPath() + ".part");
+		File checkpoint = new File(part.getPath() + ".ckpt");
+		File parent = local.getAbsoluteFile().getParentFile();
+		if(parent != null) {
+			parent.mkdirs();
+		}
+		long size = attr.size();
+		String mtime = attr.lastModifiedTime().toString();
+
+		Properties saved = load(checkpoint);
+		long offset = 0;
+		MessageDigest md = SSHParallelTransfer.newMD5();
+		if(saved != null && remote.equals(saved.getProperty("remote")) && String.valueOf(size).equals(saved.getProperty("size"))
+				&& mtime.equals(saved.getProperty("mtime"))) {
+			offset = verifiedPrefix(part, Long.parseLong(saved.getProperty("offset")), saved.getProperty("md5"), md);
+		}
+
+		Properties progress = new Properties();
+		progress.setProperty("remote", remote);
+		progress.setProperty("size", String.valueOf(size));
+		progress.setProperty("mtime", mtime);
+		try (RandomAccessFile raf = new RandomAccessFile(part, "rw")) {
+			raf.setLength(offset);
+			FileChannel channel = raf.getChannel();
+			while(offset < size) {
+				long length = Math.min(chunkSize, size - offset);
+				long n = fs.readRange(remote, offset, length, new DigestOutputStream(
+						new SSHParallelTransfer.PositionalOutputStream(channel, offset), md));
+				if(n != length) {
+					discard(part, checkpoint);
+					throw new IOException("Short read of " + remote + " at " + offset + ": " + n + " of " + length + " bytes, file changed during transfer");
+				}
+				offset += n;
+				channel.force(false);
+				save(checkpoint, progress, offset, md);
+			}
+		}
+
+		String expected = fs.md5(remote);
+		String actual = SSHParallelTransfer.hex(md.digest());
+		if(part.length() != size || !actual.equalsIgnoreCase(expected)) {
+			discard(part, checkpoint);
+			throw new IOException("MD5 mismatch of " + local + " downloaded from " + remote + ": " + actual + " instead of " + expected);
+		}
+		Files.move(part.toPath(), local.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		checkpoint.delete();
+	}
+
+	/**
+	 * Upload a local file to a remote file through a hidden <code>.name.random.part</code> next to it, whose
+	 * checkpoint is kept in the local directory of the file system. The name of the partial copy is unique to
+	 * the transfer, so that concurrent uploads to the same remote file do not write into each other, and is
+	 * recorded in the checkpoint to be resumed.
+	 * @param remote path of the remote file, not of its directory
+	 */
+	void upload(File local, String remote) throws IOException {
+		long size = local.length();
+		String mtime = String.valueOf(local.lastModified());
+		MessageDigest key = SSHParallelTransfer.newMD5();
+		key.update((local.getAbsolutePath() + "\0" + remote).getBytes(StandardCharsets.UTF_8));
+		File checkpoint = new File(localDir, "ssh-upload-" + SSHParallelTransfer.hex(key.digest()) + ".ckpt");
+
+		Properties saved = claim(checkpoint);
+		String savedTemp = saved == null ? null : saved.getProperty("temp");
+		boolean resumable = savedTemp != null && local.getAbsolutePath().equals(saved.getProperty("local")) && remote.equals(saved.getProperty("remote"))
+				&& String.valueOf(size).equals(saved.getProperty("size")) && mtime.equals(saved.getProperty("mtime"));
+		String parent = SSHAttributeCache.parent(remote);
+		String temp = resumable ? savedTemp : (parent == null ? "" : parent.equals("/") ? "/" : parent + "/") + "."
+				+ SSHAttributeCache.fileName(remote) + "." + UUID.randomUUID().toString().substring(0, 8) + ".part";
+		String quotedTemp = SSHLinuxFileSystem.quote(temp);
+		if(savedTemp != null && !resumable) {
+			// partial copy of a previous version of the file
+			try {
+				fs.run("rm -f -- " + SSHLinuxFileSystem.quote(savedTemp), "remove " + savedTemp);
+			} catch (IOException e) {
+				// left behind
+			}
+		}
+		long offset = 0;
+		MessageDigest md = SSHParallelTransfer.newMD5();
+		if(resumable) {
+			long savedOffset = Long.parseLong(saved.getProperty("offset"));
+			// the remote partial copy is checked on the remote host, not transferred back
+			String remoteMD5;
+			try {
+				remoteMD5 = fs.run("test $(stat -c %s -- " + quotedTemp + ") -ge " + savedOffset + " && head -c " + savedOffset
+						+ " -- " + quotedTemp + " | md5sum", "verify " + temp).trim().split("\\s+")[0];
+			} catch (IOException e) {
+				remoteMD5 = null;
+			}
+			if(saved.getProperty("md5").equalsIgnoreCase(remoteMD5)) {
+				offset = verifiedPrefix(local, savedOffset, remoteMD5, md);
+			}
+		}
+		if(offset == 0) {
+			md.reset();
+			fs.run(": > " + quotedTemp, "create " + temp);
+		}
+
+		Properties progress = new Properties();
+		progress.setProperty("local", local.getAbsolutePath());
+		progress.setProperty("remote", remote);
+		progress.setProperty("temp", temp);
+		progress.setProperty("size", String.valueOf(size));
+		progress.setProperty("mtime", mtime);
+		try (FileInputStream in = new FileInputStream(local)) {
+			FileChannel channel = in.getChannel();
+			while(offset < size) {
+				long length = Math.min(chunkSize, size - offset);
+				fs.writeRange(temp, offset, new DigestInputStream(new SSHParallelTransfer.PositionalInputStream(channel, offset, length), md));
+				offset += length;
+				save(checkpoint, progress, offset, md);
+			}
+		}
+
+		String expected = SSHParallelTransfer.hex(md.digest());
+		String[] result = fs.run("stat -c %s -- " + quotedTemp + " && md5sum < " + quotedTemp, "verify " + temp).trim().split("\\s+");
+		if(result.length < 2 || !result[0].equals(String.valueOf(size)) || !result[1].equalsIgnoreCase(expected)) {
+			checkpoint.delete();
+			try {
+				fs.run("rm -f -- " + quotedTemp, "remove " + temp);
+			} catch (IOException e) {
+				// the mismatch is reported
+			}
+			throw new IOException("MD5 mismatch of " + temp + " uploaded from " + local + ": " + (result.length < 2 ? "" : result[1]) + " instead of " + expected);
+		}
+		String quotedRemote = SSHLinuxFileSystem.quote(remote);
+		fs.run(SSHParallelTransfer.chmod(local, quotedRemote, quotedTemp) + " && mv -f -- " + quotedTemp + " " + quotedRemote,
+				"rename " + temp + " to " + remote);
+		checkpoint.delete();
+		fs.invalidate(temp);
+		fs.invalidate(remote);
+	}
+
+	/**
+	 * Hash the first bytes of a local file, the digest then continues from there
+	 * @return offset if the file has at least that many bytes with the expected digest, 0 otherwise
+	 */
+	private static long verifiedPrefix(File file, long offset, String expected, MessageDigest md) throws IOException {
+		if(!file.isFile() || file.length() < offset || expected == null) {
+			return 0;
+		}
+		try (InputStream in = new FileInputStream(file)) {
+			byte[] buf = new byte[64 * 1024];
+			long remaining = offset;
+			int n;
+			while(remaining > 0 && (n = in.read(buf, 0, (int) Math.min(buf.length, remaining))) > 0) {
+				md.update(buf, 0, n);
+				remaining -= n;
+			}
+		}
+		MessageDigest copy = clone(md);
+		if(!SSHParallelTransfer.hex(copy.digest()).equalsIgnoreCase(expected)) {
+			md.reset();
+			return 0;
+		}
+		return offset;
+	}
+
+	/**
+	 * Load a checkpoint and take it away, so that of concurrent uploads of the same file only one resumes
+	 * into the partial copy it records
+	 * @return null if there is no checkpoint or another upload claimed it
+	 */
+	private static Properties claim(File checkpoint) {
+		if(!checkpoint.isFile()) {
+			return null;
+		}
+		File claimed = new File(checkpoint.getPath() + "." + UUID.randomUUID().toString().substring(0, 8) + ".ckpt");
+		try {
+			Files.move(checkpoint.toPath(), claimed.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			return null;
+		}
+		try {
+			return load(claimed);
+		} finally {
+			claimed.delete();
+		}
+	}
+
+	private static Properties load(File checkpoint) {
+		if(!checkpoint.isFile()) {
+			return null;
+		}
+		Properties properties = new Properties();
+		try (InputStream in = new FileInputStream(checkpoint)) {
+			properties.load(in);
+		} catch (IOException e) {
+			return null;
+		}
+		if(properties.getProperty("offset") == null || properties.getProperty("md5") == null) {
+			return null;
+		}
+		return properties;
+	}
+
+	/**
+	 * Write the checkpoint to a new file renamed over the previous one, so that a crash leaves either
+	 * the previous or the next checkpoint, never a truncated one
+	 */
+	private static void save(File checkpoint, Properties progress, long offset, MessageDigest md) throws IOException {
+		progress.setProperty("offset", String.valueOf(offset));
+		progress.setProperty("md5", SSHParallelTransfer.hex(clone(md).digest()));
+		File next = new File(checkpoint.getPath() + ".new");
+		try (OutputStream out = new FileOutputStream(next)) {
+			progress.store(out, null);
+		}
+		Files.move(next.toPath(), checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static void discard(File part, File checkpoint) {
+		checkpoint.delete();
+		part.delete();
+	}
+
+	private static MessageDigest clone(MessageDigest md) throws IOException {
+		try {
+			return (MessageDigest) md.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new IOException(e);
+		}
+	}
+}
@@ -0,0 +1,192 @@
+package com.teradyne.adc.fs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.NoSuchFileException;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.apache.sshd.client.subsystem.sftp.SftpClient;
+import org.apache.sshd.client.subsystem.sftp.SftpClient.Attributes;
+import org.apache.sshd.client.subsystem.sftp.SftpClient.CloseableHandle;
+import org.apache.sshd.client.subsystem.sftp.SftpClient.DirEntry;
+import org.apache.sshd.client.subsystem.sftp.SftpClient.OpenMode;
+import org.apache.sshd.common.subsystem.sftp.SftpConstants;
+import org.apache.sshd.common.subsystem.sftp.SftpException;
+import org.apache.sshd.common.subsystem.sftp.SftpHelper;
+
+/**
+ * Package private backend serving file attributes, listings and file content through the SFTP subsystem.
+ * Replies are binary, so nothing has to be forked on the remote host and nothing has to be parsed from
+ * the output of <code>ls</code>.
+ * @author wangho
+ *
+ */
+class SSHSftpBackend {
+
+	/**
+	 * Supplies the SFTP client of the session, reopening it if the session was reconnected
+	 */
+	interface Source {
+		SftpClient get() throws IOException;
+	}
+
+	private final Source source;
+
+	SSHSftpBackend(Source source) {
+		this.source = source;
+	}
+
+	/**
+	 * @return attributes of the path, following symbolic links
+	 * @throws NoSuchFileException if the path does not exist
+	 */
+	SSHLinuxFileAttributes stat(String path) throws IOException {
+		try {
+			return toAttributes(source.get().stat(path));
+		} catch (SftpException e) {
+			throw translate(e, path);
+		}
+	}
+
+	/**
+	 * @return attributes of the path itself, not of the target if it is a symbolic link
+	 * @throws NoSuchFileException if the path does not exist
+	 */
+	SSHLinuxFileAttributes lstat(String path) throws IOException {
+		try {
+			return toAttributes(source.get().lstat(path));
+		} catch (SftpException e) {
+			throw translate(e, path);
+		}
+	}
+
+	/**
+	 * Create an empty file if the path does not exist yet, like touch without updating times
+	 */
+	void create(String path) throws IOException {
+		try {
+			// nothing to write
+			source.get().open(path, EnumSet.of(OpenMode.Write, OpenMode.Create)).close();
+		} catch (SftpException e) {
+			throw translate(e, path);
+		}
+	}
+
+	/**
+	 * @return handle to read the entries of the directory in batches with {@link #readDir(CloseableHandle)}
+	 */
+	CloseableHandle openDir(String path) throws IOException {
+		try {
+			return source.get().openDir(path);
+		} catch (SftpException e) {
+			throw translate(e, path);
+		}
+	}
+
+	/**
+	 * @return next batch of entries, including "." and "..", null once all entries were read
+	 */
+	List<DirEntry> readDir(CloseableHandle dir) throws IOException {
+		return source.get().readDir(dir);
+	}
+
+	InputStream read(String path) throws IOException {
+		try {
+			return source.get().read(path);
+		} catch (SftpException e) {
+			throw translate(e, path);
+		}
+	}
+
+	OutputStream write(String path) throws IOException {
+		try {
+			return source.get().write(path, OpenMode.Write, OpenMode.Create, OpenMode.Truncate);
+		} catch (SftpException e) {
+			throw translate(e, path);
+		}
+	}
+
+	/**
+	 * Read up to len bytes at the given offset of the file
+	 * @return number of bytes read, -1 at the end of file
+	 */
+	int read(String path, long offset, byte[] buf, int off, int len) throws IOException {
+		SftpClient sftp = source.get();
+		try (CloseableHandle handle = sftp.open(path, OpenMode.Read)) {
+			int total = 0;
+			while(total < len) {
+				int n = sftp.read(handle, offset + total, buf, off + total, len - total);
+				if(n < 0) {
+					break;
+				}
+				total += n;
+			}
+			return total == 0 && len > 0 ? -1 : total;
+		} catch (SftpException e) {
+			throw translate(e, path);
+		}
+	}
+
+	/**
+	 * Write len bytes at the given offset of the file, creating it if needed and keeping the other bytes
+	 */
+	void write(String path, long offset, byte[] buf, int off, int len) throws IOException {
+		SftpClient sftp = source.get();
+		try (CloseableHandle handle = sftp.open(path, OpenMode.Write, OpenMode.Create)) {
+			sftp.write(handle, offset, buf, off, len);
+		} catch (SftpException e) {
+			throw translate(e, path);
+		}
+	}
+
+	/**
+	 * Set the size of the file, cutting it or extending it with zeros
+	 */
+	void truncate(String path, long size) throws IOException {
+		try {
+			source.get().setStat(path, new Attributes().size(size));
+		} catch (SftpException e) {
+			throw translate(e, path);
+		}
+	}
+
+	/**
+	 * Rename, SFTP v3 servers refuse to replace an existing target so the caller should fall back to mv
+	 */
+	void rename(String src, String dst) throws IOException {
+		try {
+			source.get().rename(src, dst);
+		} catch (SftpException e) {
+			throw translate(e, src);
+		}
+	}
+
+	static SSHLinuxFileAttributes toAttributes(Attributes attrs) {
+		int uid = attrs.getUserId();
+		int gid = attrs.getGroupId();
+		// SFTP v3 only carries numeric ids, newer versions also carry names
+		String owner = attrs.getOwner() != null ? attrs.getOwner() : String.valueOf(uid);
+		String group = attrs.getGroup() != null ? attrs.getGroup() : String.valueOf(gid);
+		return new SSHLinuxFileAttributes()
+				.setIsDirectory(attrs.isDirectory())
+				.setIsSymbolLink(attrs.isSymbolicLink())
+				.setIsRegularFile(attrs.isRegularFile())
+				.setAttributes(SftpHelper.permissionsToAttributes(attrs.getPermissions()))
+				.setUser(new SSHLinuxFileSystem.User(uid, owner))
+				.setGroup(new SSHLinuxFileSystem.Group(gid, group))
+				.setSize(attrs.getSize())
+				.setLastModifiedTime(attrs.getModifyTime())
+				.setLastAccesstime(attrs.getAccessTime());
+	}
+
+	private static IOException translate(SftpException e, String path) {
+		if(e.getStatus() == SftpConstants.SSH_FX_NO_SUCH_FILE || e.getStatus() == SftpConstants.SSH_FX_NO_SUCH_PATH) {
+			NoSuchFileException missing = new NoSuchFileException(path);
+			missing.initCause(e);
+			return missing;
+		}
+		return e;
+	}
+}
@@ -0,0 +1,250 @@
+package com.teradyne.adc.fs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.sshd.client.channel.ChannelExec;
+import org.apache.sshd.client.session.ClientSession;
+
+/**
+ * Package private long-lived remote <code>sh</code> running on one channel. Commands are written to its
+ * stdin framed by begin/end sentinels carrying a unique token, and a reader thread splits its stdout back
+ * into the output of each command together with its exit code. Several commands can be written before
+ * the first reply arrives, replies come back in the same order.
+ * @author wangho
+ *
+ */
+class SSHShellChannel {
+
+	private final static String BEGIN = "__SSHFS_BEGIN_";
+	private final static String END = "__SSHFS_END_";
+
+	private final ChannelExec channel;
+	private final OutputStream stdin;
+	private final String token;
+	private final Deque<Request> pending = new ArrayDeque<>();
+	private long nextId;
+	private volatile IOException failure;
+
+	SSHShellChannel(ClientSession session) throws IOException {
+		this.token = UUID.randomUUID().toString().replace("-", "");
+		this.channel = session.createExecChannel("sh");
+		this.channel.open().verify();
+		this.stdin = channel.getInvertedIn();
+		Thread reader = new Thread(new Reader(channel.getInvertedOut()), "SSHShellChannel-" + token.substring(0, 8));
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Run a command and wait for it to finish
+	 * @param cmd command line, must not read from stdin
+	 * @param out receives the stdout of the command, may be null to discard it
+	 * @return exit code of the command
+	 * @throws IOException if the shell channel broke before the command finished
+	 */
+	int exec(String cmd, OutputStream out) throws IOException {
+		Future<Integer> result = submit(cmd, out);
+		try {
+			return result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for: " + cmd, e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Send a command without waiting for its reply, so that several commands can be in flight
+	 * @return future completed with the exit code of the command once its whole output was written to out
+	 * @throws IOException if the shell channel is broken
+	 */
+	Future<Integer> submit(String cmd, OutputStream out) throws IOException {
+		synchronized (pending) {
+			if(failure != null) {
+				throw failure;
+			}
+			Request request = new Request(nextId++, out);
+			// stdin of the command is detached so that it cannot swallow the commands queued after it
+			String framed = "printf '%s\\n' '" + BEGIN + token + "_" + request.id + "'\n"
+					+ "{ " + cmd + "\n} </dev/null 2>/dev/null\n"
+					+ "printf '\\n%s %d\\n' '" + END + token + "_" + request.id + "' $?\n";
+			pending.addLast(request);
+			try {
+				stdin.write(framed.getBytes(StandardCharsets.UTF_8));
+				stdin.flush();
+			} catch (IOException e) {
+				fail(e);
+				throw e;
+			}
+			return request.result;
+		}
+	}
+
+	boolean isOpen() {
+		return failure == null && channel.isOpen();
+	}
+
+	void close() {
+		fail(new IOException("Shell channel closed"));
+		channel.close(true);
+	}
+
+	private void fail(IOException e) {
+		synchronized (pending) {
+			if(failure == null) {
+				failure = e;
+			}
+			for(Request request : pending) {
+				request.result.completeExceptionally(failure);
+			}
+			pending.clear();
+		}
+	}
+
+	private static class Request {
+		private final long id;
+		private final OutputStream out;
+		private final CompletableFuture<Integer> result = new CompletableFuture<>();
+
+		Request(long id, OutputStream out) {
+			this.id = id;
+			this.out = out;
+		}
+	}
+
+	/**
+	 * Demultiplex the stdout of the shell into the output of the pending requests
+	 */
+	private class Reader implements Runnable {
+		private final InputStream in;
+		private byte[] buf = new byte[8192];
+		private int len;
+
+		Reader(InputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public void run() {
+			try {
+				for(;;) {
+					Request request;
+					synchronized (pending) {
+						request = pending.peekFirst();
+					}
+					if(request == null) {
+						// nothing in flight, only wait for more data or the end of the channel
+						if(!fill()) {
+							throw new IOException("Shell channel closed by remote");
+						}
+						continue;
+					}
+					byte[] begin = (BEGIN + token + "_" + request.id + "\n").getBytes(StandardCharsets.UTF_8);
+					skipTo(begin);
+					byte[] end = ("\n" + END + token + "_" + request.id + " ").getBytes(StandardCharsets.UTF_8);
+					copyTo(end, request.out);
+					int status = readStatus();
+					synchronized (pending) {
+						pending.pollFirst();
+					}
+					request.result.complete(status);
+				}
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+
+		private boolean fill() throws IOException {
+			if(len == buf.length) {
+				byte[] larger = new byte[buf.length * 2];
+				System.arraycopy(buf, 0, larger, 0, len);
+				buf = larger;
+			}
+			int n = in.read(buf, len, buf.length - len);
+			if(n < 0) {
+				return false;
+			}
+			len += n;
+			return true;
+		}
+
+		private void consume(int n) {
+			System.arraycopy(buf, n, buf, 0, len - n);
+			len -= n;
+		}
+
+		private void skipTo(byte[] marker) throws IOException {
+			for(;;) {
+				int at = indexOf(marker);
+				if(at >= 0) {
+					consume(at + marker.length);
+					return;
+				}
+				// keep a tail which may be the beginning of the marker
+				if(len > marker.length) {
+					consume(len - marker.length);
+				}
+				if(!fill()) {
+					throw new IOException("Shell channel closed by remote");
+				}
+			}
+		}
+
+		private void copyTo(byte[] marker, OutputStream out) throws IOException {
+			for(;;) {
+				int at = indexOf(marker);
+				int safe = at >= 0 ? at : len - marker.length;
+				if(safe > 0) {
+					if(out != null) {
+						out.write(buf, 0, safe);
+					}
+					consume(safe);
+				}
+				if(at >= 0) {
+					consume(marker.length);
+					return;
+				}
+				if(!fill()) {
+					throw new IOException("Shell channel closed by remote");
+				}
+			}
+		}
+
+		private int readStatus() throws IOException {
+			ByteArrayOutputStream digits = new ByteArrayOutputStream();
+			copyTo(new byte[] {'\n'}, digits);
+			try {
+				return Integer.parseInt(digits.toString("UTF-8").trim());
+			} catch (NumberFormatException e) {
+				throw new IOException("Corrupted reply from shell channel: " + digits);
+			}
+		}
+
+		private int indexOf(byte[] marker) {
+			outer:
+			for(int i = 0; i + marker.length <= len; i++) {
+				for(int j = 0; j < marker.length; j++) {
+					if(buf[i + j] != marker[j]) {
+						continue outer;
+					}
+				}
+				return i;
+			}
+			return -1;
+		}
+	}
+}
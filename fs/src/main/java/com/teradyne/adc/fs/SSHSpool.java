@@ -0,0 +1,271 @@
+package com.teradyne.adc.fs;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Package private index of the files localized into the spool directory, which holds at most a fixed
+ * number of bytes. Each localization marks its files as used, and the least recently used files are deleted
+ * once the spool exceeds its size. Names linked to the same local file, such as the paths sharing an object
+ * of the content store, count once and are deleted together. A file is pinned, and never deleted, as long as
+ * an {@link SSHLinuxFile} of one of its names or of a directory above it is reachable, which includes files
+ * written through an open {@link SSHFileOutputStream}. The spool directory is scanned when the index is
+ * created, ordering the files already there by their last access or modification time, so that files
+ * localized before a restart count against the size and are evicted first.
+ * <p>
+ * Partial downloads, checkpoints of resumable transfers, the copies uploaded by write-back and the records of
+ * the objects of the content store are left out of the index, the latter are deleted with their objects.
+ * @author wangho
+ *
+ */
+class SSHSpool {
+
+	/**
+	 * Local file with all its names
+	 */
+	private static final class Node {
+		private final Set<Path> names = new LinkedHashSet<>();
+		private long size;
+	}
+
+	private final Path root;
+	private final long maxBytes;
+	// file key, or path where there is none -> file, in the order of use
+	private final LinkedHashMap<Object, Node> nodes = new LinkedHashMap<>(16, 0.75f, true);
+	// local path -> file key
+	private final Map<Path, Object> keys = new HashMap<>();
+	// local path -> files and directories handed out for it
+	private final Map<Path, List<WeakReference<Object>>> holders = new HashMap<>();
+	private long bytes;
+
+	SSHSpool(Path root, long maxBytes) throws IOException {
+		this.root = root.toAbsolutePath().normalize();
+		this.maxBytes = maxBytes;
+		Files.createDirectories(this.root);
+		scan();
+	}
+
+	Path root() {
+		return root;
+	}
+
+	/**
+	 * Mark a file, or all files below a directory, as just used, then evict other files if the spool is too
+	 * large
+	 * @param local path of a localized file or directory
+	 */
+	void used(Path local) throws IOException {
+		Path path = local.toAbsolutePath().normalize();
+		if(Files.isDirectory(path)) {
+			Map<Path, BasicFileAttributes> found = new LinkedHashMap<>();
+			Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					if(attrs.isRegularFile() && !isTransient(file)) {
+						found.put(file, attrs);
+					}
+					return FileVisitResult.CONTINUE;
+				}
+			});
+			synchronized(this) {
+				// files deleted from the directory since it was used last are dropped
+				List<Path> gone = new ArrayList<>();
+				for(Path name : keys.keySet()) {
+					if(name.startsWith(path) && !found.containsKey(name)) {
+						gone.add(name);
+					}
+				}
+				for(Path name : gone) {
+					remove(name);
+				}
+				for(Map.Entry<Path, BasicFileAttributes> e : found.entrySet()) {
+					put(e.getKey(), e.getValue());
+				}
+			}
+		} else if(Files.isRegularFile(path)) {
+			BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			synchronized(this) {
+				put(path, attrs);
+			}
+		}
+		evict(path);
+	}
+
+	/**
+	 * Pin a localized file or directory as long as the holder is reachable
+	 */
+	synchronized void hold(Path local, Object holder) {
+		Path path = local.toAbsolutePath().normalize();
+		if(path.startsWith(root)) {
+			List<WeakReference<Object>> refs = holders.computeIfAbsent(path, k -> new ArrayList<>());
+			refs.removeIf(ref -> ref.get() == null);
+			refs.add(new WeakReference<>(holder));
+		}
+	}
+
+	/**
+	 * Delete the least recently used files which are not pinned until the spool fits its size
+	 * @param keep file or directory just used, which is kept even if it alone exceeds the size, null for none
+	 */
+	private synchronized void evict(Path keep) {
+		if(bytes <= maxBytes) {
+			return;
+		}
+		Iterator<Node> it = nodes.values().iterator();
+		while(bytes > maxBytes && it.hasNext()) {
+			Node node = it.next();
+			if(isKept(node, keep)) {
+				continue;
+			}
+			for(Iterator<Path> names = node.names.iterator(); names.hasNext();) {
+				Path name = names.next();
+				try {
+					Files.deleteIfExists(name);
+					if(isIn(name, SSHContentStore.DIRECTORY)) {
+						Files.deleteIfExists(SSHContentStore.seal(name));
+					}
+				} catch (IOException e) {
+					// still in use by another process, tried again later
+					continue;
+				}
+				names.remove();
+				keys.remove(name);
+				deleteEmptyParents(name);
+			}
+			if(node.names.isEmpty()) {
+				bytes -= node.size;
+				it.remove();
+			}
+		}
+	}
+
+	private boolean isKept(Node node, Path keep) {
+		for(Path name : node.names) {
+			if((keep != null && name.startsWith(keep)) || isPinned(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void put(Path path, BasicFileAttributes attrs) {
+		Object key = attrs.fileKey() != null ? attrs.fileKey() : path;
+		if(!key.equals(keys.get(path))) {
+			// another file than the one indexed under this name
+			remove(path);
+		}
+		Node node = nodes.get(key);
+		if(node == null) {
+			node = new Node();
+			nodes.put(key, node);
+		}
+		node.names.add(path);
+		keys.put(path, key);
+		bytes += attrs.size() - node.size;
+		node.size = attrs.size();
+	}
+
+	private void remove(Path path) {
+		Object key = keys.remove(path);
+		if(key == null) {
+			return;
+		}
+		Node node = nodes.get(key);
+		if(node != null) {
+			node.names.remove(path);
+			if(node.names.isEmpty()) {
+				bytes -= node.size;
+				nodes.remove(key);
+			}
+		}
+	}
+
+	private boolean isPinned(Path path) {
+		for(Path p = path; p != null && p.startsWith(root); p = p.getParent()) {
+			List<WeakReference<Object>> refs = holders.get(p);
+			if(refs == null) {
+				continue;
+			}
+			refs.removeIf(ref -> ref.get() == null);
+			if(!refs.isEmpty()) {
+				return true;
+			}
+			holders.remove(p);
+		}
+		return false;
+	}
+
+	private void deleteEmptyParents(Path path) {
+		for(Path dir = path.getParent(); dir != null && !dir.equals(root) && dir.startsWith(root); dir = dir.getParent()) {
+			try {
+				Files.delete(dir);
+			} catch (IOException e) {
+				// not empty
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Index the files of the spool directory from the least to the most recently used
+	 */
+	private void scan() throws IOException {
+		Map<Path, BasicFileAttributes> found = new HashMap<>();
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if(attrs.isRegularFile() && !isTransient(file)) {
+					found.put(file, attrs);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		List<Path> sorted = new ArrayList<>(found.keySet());
+		sorted.sort((a, b) -> Long.compare(used(found.get(a)), used(found.get(b))));
+		synchronized(this) {
+			for(Path file : sorted) {
+				put(file, found.get(file));
+			}
+		}
+		evict(null);
+	}
+
+	private static long used(BasicFileAttributes attrs) {
+		return Math.max(attrs.lastAccessTime().toMillis(), attrs.lastModifiedTime().toMillis());
+	}
+
+	/**
+	 * @return whether a file is the partial copy or the checkpoint of a transfer in progress
+	 */
+	private boolean isTransient(Path file) {
+		String name = file.getFileName().toString();
+		return name.endsWith(".part") || name.endsWith(".ckpt") || name.endsWith(".ckpt.new") || isIn(file, SSHWriteBack.DIRECTORY)
+				|| isIn(file, SSHContentStore.DIRECTORY) && (name.endsWith(SSHContentStore.SEAL) || name.endsWith(SSHContentStore.SEAL + ".new"));
+	}
+
+	/**
+	 * @return whether a path is below a directory of the spool directory
+	 */
+	private boolean isIn(Path file, String directory) {
+		return file.toAbsolutePath().normalize().startsWith(root.resolve(directory));
+	}
+}
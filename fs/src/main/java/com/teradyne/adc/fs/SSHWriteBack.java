@@ -0,0 +1,233 @@
+package com.teradyne.adc.fs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Package private queue of local files committed to their remote path in the background. A commit waits
+ * for a delay before it starts, and commits of the same remote path queued meanwhile are coalesced into it,
+ * so that a file rewritten many times in a row is uploaded once. A path is never uploaded by two threads at
+ * the same time: a commit queued while the path is being uploaded starts once the upload is done. A fixed
+ * number of threads bounds the uploads in flight. A file is uploaded from a copy taken when its upload
+ * starts, so that a writer reopening it meanwhile does not change what is being uploaded.
+ * <p>
+ * Failures are handed to the futures of the commits, and the last one of each path is kept until the next
+ * {@link #flush()} reports it, unless a later upload of the path succeeds first.
+ * Commits submitted once the queue is closed are made right away in the calling thread.
+ * @author wangho
+ *
+ */
+class SSHWriteBack {
+
+	// directory of the copies of the files being uploaded, in the spool directory
+	final static String DIRECTORY = ".write-back";
+
+	private static final AtomicInteger POOL = new AtomicInteger();
+
+	/**
+	 * Commit of a remote path, queued or in progress
+	 */
+	private static final class Upload {
+		private final String remote;
+		private SSHLinuxFile file;
+		private boolean recursive;
+		private boolean started;
+		// waited for by a flush, so started without the delay
+		private boolean flushed;
+		private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+		Upload(String remote, SSHLinuxFile file, boolean recursive) {
+			this.remote = remote;
+			this.file = file;
+			this.recursive = recursive;
+		}
+	}
+
+	private final ScheduledExecutorService executor;
+	private final long delay;
+	// remote path -> commit waiting to start
+	private final Map<String, Upload> queued = new HashMap<>();
+	// remote path -> commit in progress
+	private final Map<String, Upload> running = new HashMap<>();
+	// remote path -> last failure of its commits
+	private final Map<String, Exception> failures = new LinkedHashMap<>();
+	private boolean closed;
+
+	/**
+	 * @param concurrency most uploads in flight
+	 * @param delay nanoseconds a commit waits for more commits of the same path before it starts
+	 */
+	SSHWriteBack(int concurrency, long delay) {
+		int pool = POOL.incrementAndGet();
+		AtomicInteger thread = new AtomicInteger();
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(concurrency, r -> {
+			Thread t = new Thread(r, "ssh-write-back-" + pool + "-" + thread.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		// runs left by flushes are no-ops
+		executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		this.executor = executor;
+		this.delay = delay;
+	}
+
+	/**
+	 * Queue the commit of a local file to its remote path, or commit it right away once the queue is closed,
+	 * after the upload of the path still queued or in progress if any
+	 * @return completed once the file, as it is when the commit starts, is uploaded
+	 * @throws IOException if the queue is closed and the upload fails
+	 */
+	CompletableFuture<Void> submit(SSHLinuxFile file, String remote, boolean recursive) throws IOException {
+		List<CompletableFuture<Void>> previous = new ArrayList<>();
+		synchronized(this) {
+			if(!closed) {
+				Upload upload = queued.get(remote);
+				if(upload != null) {
+					upload.file = file;
+					upload.recursive |= recursive;
+					return upload.future;
+				}
+				upload = new Upload(remote, file, recursive);
+				queued.put(remote, upload);
+				if(!running.containsKey(remote)) {
+					schedule(upload, delay);
+				}
+				return upload.future;
+			}
+			for(Upload upload : new Upload[] { running.get(remote), queued.get(remote) }) {
+				if(upload != null) {
+					previous.add(upload.future);
+				}
+			}
+		}
+		// write-back turned off meanwhile, an older copy of the file uploaded later would win
+		for(CompletableFuture<Void> future : previous) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				// reported by the flush of the queue
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for the upload of " + remote);
+			}
+		}
+		file.commitNow(recursive);
+		return CompletableFuture.completedFuture(null);
+	}
+
+	/**
+	 * Start the queued commits right away and wait for all commits queued or in progress
+	 * @throws IOException first failure of a commit since the last flush, with the others suppressed, leaving
+	 * out failures of paths uploaded successfully since
+	 */
+	void flush() throws IOException {
+		List<CompletableFuture<Void>> futures = new ArrayList<>();
+		synchronized(this) {
+			for(Upload upload : running.values()) {
+				futures.add(upload.future);
+			}
+			for(Upload upload : queued.values()) {
+				futures.add(upload.future);
+				upload.flushed = true;
+				if(!running.containsKey(upload.remote)) {
+					schedule(upload, 0);
+				}
+			}
+		}
+		for(CompletableFuture<Void> future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				// reported below
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for uploads");
+			}
+		}
+		IOException failure = null;
+		synchronized(this) {
+			for(Exception e : failures.values()) {
+				if(failure == null) {
+					failure = e instanceof IOException ? (IOException) e : new IOException(e);
+				} else {
+					failure.addSuppressed(e);
+				}
+			}
+			failures.clear();
+		}
+		if(failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Flush the commits, then stop the threads. Commits submitted from now on are made right away.
+	 */
+	void close() throws IOException {
+		synchronized(this) {
+			closed = true;
+		}
+		try {
+			flush();
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private void schedule(Upload upload, long delay) {
+		try {
+			executor.schedule(() -> run(upload), delay, TimeUnit.NANOSECONDS);
+		} catch (RejectedExecutionException e) {
+			// only once closed, when all commits are flushed already
+			queued.remove(upload.remote, upload);
+			IOException failure = new IOException("Write-back of " + upload.remote + " is closed", e);
+			failures.put(upload.remote, failure);
+			upload.future.completeExceptionally(failure);
+		}
+	}
+
+	private void run(Upload upload) {
+		synchronized(this) {
+			// started already by a flush, or queued behind an upload of the same path
+			if(upload.started || running.containsKey(upload.remote)) {
+				return;
+			}
+			upload.started = true;
+			queued.remove(upload.remote, upload);
+			running.put(upload.remote, upload);
+		}
+		try {
+			upload.file.commitSnapshot(upload.recursive);
+			synchronized(this) {
+				// the remote file is up to date again
+				failures.remove(upload.remote);
+			}
+			upload.future.complete(null);
+		} catch (IOException | RuntimeException e) {
+			synchronized(this) {
+				failures.put(upload.remote, e);
+			}
+			upload.future.completeExceptionally(e);
+		} finally {
+			synchronized(this) {
+				running.remove(upload.remote);
+				Upload next = queued.get(upload.remote);
+				if(next != null) {
+					schedule(next, next.flushed ? 0 : delay);
+				}
+			}
+		}
+	}
+}
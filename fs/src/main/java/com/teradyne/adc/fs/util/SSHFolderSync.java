@@ -0,0 +1,437 @@
+package com.teradyne.adc.fs.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Incremental copy of a directory between the local host and a remote host. A manifest of the relative path,
+ * size and modification time of every entry is built on each side in a single pass, a <code>find</code> on the
+ * remote host and a walk of the local directory, and only files which are missing on the target or differ
+ * in size or modification time are transferred. The files are transferred as a single <code>tar</code> stream
+ * through one command, compressed with <code>gzip</code> if the remote host has it, instead of one exchange
+ * per file. The permissions and modification time of the source are given to each copied file, so that an
+ * unchanged tree is found unchanged by the next sync. Entries of the target missing in the source are deleted
+ * if asked for. Symbolic links are neither followed nor copied.
+ * <p>
+ * Modification times are compared in whole seconds, the precision kept by <code>tar</code> and by file
+ * systems of the local host. The remote host needs GNU <code>tar</code>.
+ * Subclasses run the remote commands on the session they manage.
+ * @author wangho
+ *
+ */
+public abstract class SSHFolderSync {
+
+	// longest command built for creating or removing a batch of paths
+	private final static int MAX_COMMAND = 64 * 1024;
+	private final static int PIPE_SIZE = 256 * 1024;
+	private final static String TAR_CREATE = "tar -cf - --no-recursion --null --no-unquote -T \"$L\"";
+	private final static String TAR_EXTRACT = "tar -xpf - --no-same-owner";
+
+	/**
+	 * Manifest entry of a file or a directory
+	 */
+	static final class Entry {
+		final boolean directory;
+		final long size;
+		final long mtime;
+
+		Entry(boolean directory, long size, long mtime) {
+			this.directory = directory;
+			this.size = size;
+			this.mtime = mtime;
+		}
+
+		boolean sameAs(Entry other) {
+			return other != null && directory == other.directory && (directory || (size == other.size && mtime == other.mtime));
+		}
+	}
+
+	private volatile boolean compression = true;
+	// whether the remote host has gzip, looked up once
+	private volatile Boolean gzip;
+
+	/**
+	 * Run a command on the remote host
+	 * @param in stdin of the command, null for none
+	 * @param out receives the stdout of the command, null to discard it
+	 * @return exit status of the command
+	 */
+	protected abstract int exec(String cmd, InputStream in, OutputStream out) throws IOException;
+
+	/**
+	 * Compress the transferred files with <code>gzip</code> at its fastest level where the remote host has it,
+	 * which is on by default. Worth turning off on links faster than the hosts compress.
+	 * @param compression whether transfers are compressed
+	 */
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * Make a remote directory hold the same files as a local directory, creating it if needed
+	 * @param localDir local directory whose content is copied
+	 * @param remoteDir remote directory receiving the content
+	 * @param recursive whether subdirectories are copied too, otherwise only the files directly inside
+	 * @param delete whether files and directories of the remote directory missing locally are deleted
+	 * @throws IOException if a manifest cannot be built or a file cannot be transferred
+	 */
+	public void upload(String localDir, String remoteDir, boolean recursive, boolean delete) throws IOException {
+		upload(localDir, remoteDir, recursive, delete, true);
+	}
+
+	/**
+	 * Copy all files of a local directory into a remote directory, creating it if needed, without comparing
+	 * them with the files already there
+	 * @param localDir local directory whose content is copied
+	 * @param remoteDir remote directory receiving the content
+	 * @param recursive whether subdirectories are copied too, otherwise only the files directly inside
+	 * @throws IOException if a file cannot be transferred
+	 */
+	public void copyTo(String localDir, String remoteDir, boolean recursive) throws IOException {
+		upload(localDir, remoteDir, recursive, false, false);
+	}
+
+	private void upload(String localDir, String remoteDir, boolean recursive, boolean delete, boolean incremental) throws IOException {
+		Path localRoot = Paths.get(localDir);
+		Map<String, Entry> source = localManifest(localRoot, recursive);
+		Map<String, Entry> target = incremental ? remoteManifest(remoteDir, recursive, false) : Collections.<String, Entry>emptyMap();
+		String root = remoteDir.endsWith("/") ? remoteDir : remoteDir + "/";
+
+		batch("rm -rf --", root, removed(source, target, delete), "remove from " + remoteDir);
+		List<String> paths = new ArrayList<>();
+		for(Map.Entry<String, Entry> e : source.entrySet()) {
+			if(!e.getValue().sameAs(target.get(e.getKey()))) {
+				paths.add(e.getKey());
+			}
+		}
+		if(paths.isEmpty()) {
+			batch("mkdir -p --", root, Collections.singletonList(""), "create " + remoteDir);
+			return;
+		}
+		boolean compressed = compressed();
+		String quoted = quote(remoteDir);
+		String cmd = "mkdir -p -- " + quoted + " && cd -- " + quoted + " && " + (compressed ? "gzip -dc | " : "") + TAR_EXTRACT;
+
+		PipedInputStream in = new PipedInputStream(PIPE_SIZE);
+		PipedOutputStream pipe = new PipedOutputStream(in);
+		IOException[] failure = new IOException[1];
+		Thread writer = new Thread(() -> {
+			try (OutputStream out = compressed ? new GZIPOutputStream(pipe, PIPE_SIZE) : pipe) {
+				SSHTar.write(localRoot, paths, out);
+			} catch (IOException e) {
+				failure[0] = e;
+			}
+		}, "tar upload to " + remoteDir);
+		writer.setDaemon(true);
+		writer.start();
+		int status = -1;
+		IOException error = null;
+		try {
+			status = exec(cmd, in, null);
+		} catch (IOException e) {
+			error = e;
+		} finally {
+			// unblocks the writer if the command stopped reading
+			in.close();
+			join(writer);
+		}
+		check(status, error, failure[0], "upload " + localDir + " to " + remoteDir);
+	}
+
+	/**
+	 * Make a local directory hold the same files as a remote directory, creating it if needed
+	 * @param remoteDir remote directory whose content is copied
+	 * @param localDir local directory receiving the content
+	 * @param recursive whether subdirectories are copied too, otherwise only the files directly inside
+	 * @param delete whether files and directories of the local directory missing remotely are deleted
+	 * @throws IOException if a manifest cannot be built or a file cannot be transferred
+	 */
+	public void download(String remoteDir, String localDir, boolean recursive, boolean delete) throws IOException {
+		download(remoteDir, localDir, recursive, delete, true);
+	}
+
+	/**
+	 * Copy all files of a remote directory into a local directory, creating it if needed, without comparing
+	 * them with the files already there
+	 * @param remoteDir remote directory whose content is copied
+	 * @param localDir local directory receiving the content
+	 * @param recursive whether subdirectories are copied too, otherwise only the files directly inside
+	 * @throws IOException if the remote directory cannot be listed or a file cannot be transferred
+	 */
+	public void copyFrom(String remoteDir, String localDir, boolean recursive) throws IOException {
+		download(remoteDir, localDir, recursive, false, false);
+	}
+
+	private void download(String remoteDir, String localDir, boolean recursive, boolean delete, boolean incremental) throws IOException {
+		Map<String, Entry> source = remoteManifest(remoteDir, recursive, true);
+		Path root = Paths.get(localDir);
+		Files.createDirectories(root);
+		Map<String, Entry> target = incremental ? localManifest(root, recursive) : Collections.<String, Entry>emptyMap();
+
+		for(String path : removed(source, target, delete)) {
+			deleteTree(root.resolve(path));
+		}
+		ByteArrayOutputStream list = new ByteArrayOutputStream();
+		for(Map.Entry<String, Entry> e : source.entrySet()) {
+			if(!e.getValue().sameAs(target.get(e.getKey()))) {
+				// tar would take a name starting with a dash for an option
+				list.write(("./" + e.getKey()).getBytes(StandardCharsets.UTF_8));
+				list.write(0);
+			}
+		}
+		if(list.size() == 0) {
+			return;
+		}
+		boolean compressed = compressed();
+		// the list is read in full before the archive is written, so that a server pumping stdin and stdout
+		// of a command in a single thread is not blocked writing one while tar waits on the other
+		String cmd = "cd -- " + quote(remoteDir) + " || exit 1; L=$(mktemp) || exit 1; trap 'rm -f \"$L\" \"$L.s\"' EXIT; cat > \"$L\"; "
+				+ (compressed ? "{ " + TAR_CREATE + "; echo $? > \"$L.s\"; } | gzip -1c; exit $(cat \"$L.s\")" : TAR_CREATE);
+
+		PipedInputStream in = new PipedInputStream(PIPE_SIZE);
+		PipedOutputStream out = new PipedOutputStream(in);
+		IOException[] failure = new IOException[1];
+		Thread reader = new Thread(() -> {
+			try (InputStream archive = compressed ? new GZIPInputStream(in, PIPE_SIZE) : in) {
+				SSHTar.extract(archive, root);
+			} catch (IOException e) {
+				failure[0] = e;
+			}
+		}, "tar download from " + remoteDir);
+		reader.setDaemon(true);
+		reader.start();
+		int status = -1;
+		IOException error = null;
+		try {
+			status = exec(cmd, new ByteArrayInputStream(list.toByteArray()), out);
+		} catch (IOException e) {
+			error = e;
+		} finally {
+			out.close();
+			join(reader);
+		}
+		check(status, error, failure[0], "download " + remoteDir + " to " + localDir);
+	}
+
+	/**
+	 * Report the failure of a transfer, that of the local side of the stream first as it makes the command
+	 * fail too, then that of the command
+	 * @param status exit status of the command
+	 * @param error failure running the command, null if it ran
+	 * @param failure failure writing or reading the archive locally, null if none
+	 */
+	private static void check(int status, IOException error, IOException failure, String operation) throws IOException {
+		if(failure != null && (error != null || status == 0)) {
+			throw failure;
+		}
+		if(error != null) {
+			throw error;
+		}
+		if(status != 0) {
+			throw new IOException("Failed to " + operation + ", exit status " + status, failure);
+		}
+	}
+
+	/**
+	 * @return whether transfers are compressed, which needs gzip on the remote host
+	 */
+	private boolean compressed() throws IOException {
+		if(!compression) {
+			return false;
+		}
+		Boolean found = gzip;
+		if(found == null) {
+			found = exec("command -v gzip >/dev/null", null, null) == 0;
+			gzip = found;
+		}
+		return found;
+	}
+
+	private static void join(Thread thread) throws IOException {
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for " + thread.getName());
+		}
+	}
+
+	/**
+	 * @return entries of the target to delete, those replaced by an entry of another type in the source
+	 * and, if delete is set, those missing in the source, leaving out entries below a deleted directory
+	 */
+	private static List<String> removed(Map<String, Entry> source, Map<String, Entry> target, boolean delete) {
+		List<String> removed = new ArrayList<>();
+		String dir = null;
+		// sorted, so that entries below a directory follow it
+		for(Map.Entry<String, Entry> e : target.entrySet()) {
+			String path = e.getKey();
+			if(dir != null && path.startsWith(dir)) {
+				continue;
+			}
+			Entry entry = source.get(path);
+			if(entry == null ? delete : entry.directory != e.getValue().directory) {
+				removed.add(path);
+				dir = e.getValue().directory ? path + "/" : null;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Run a command on batches of remote paths, as many as fit into a command
+	 */
+	private void batch(String cmd, String root, List<String> paths, String operation) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < paths.size(); i++) {
+			sb.append(' ').append(quote(root + paths.get(i)));
+			if(sb.length() >= MAX_COMMAND || i == paths.size() - 1) {
+				int status = exec(cmd + sb, null, null);
+				if(status != 0) {
+					throw new IOException("Failed to " + operation + ", exit status " + status);
+				}
+				sb.setLength(0);
+			}
+		}
+	}
+
+	/**
+	 * Build the manifest of a remote directory with a single <code>find</code>
+	 * @param mustExist whether a missing directory is an error, it has an empty manifest otherwise
+	 */
+	private Map<String, Entry> remoteManifest(String dir, boolean recursive, boolean mustExist) throws IOException {
+		ManifestParser parser = new ManifestParser();
+		int status = exec("cd -- " + quote(dir) + " 2>/dev/null || exit 2; find . -mindepth 1" + (recursive ? "" : " -maxdepth 1 -type f")
+				+ " \\( -type f -o -type d \\) -printf '%y\\0%P\\0%s\\0%T@\\0' 2>/dev/null", null, parser);
+		if(status == 2 && !mustExist) {
+			return Collections.emptyMap();
+		}
+		if(status == 2) {
+			throw new NoSuchFileException(dir);
+		}
+		if(status != 0) {
+			throw new IOException("Failed to list " + dir + ", exit status " + status);
+		}
+		return parser.entries;
+	}
+
+	/**
+	 * Build the manifest of a local directory with a single walk, a missing directory has an empty manifest
+	 */
+	private static Map<String, Entry> localManifest(Path dir, boolean recursive) throws IOException {
+		Map<String, Entry> entries = new TreeMap<>();
+		if(!Files.isDirectory(dir)) {
+			return entries;
+		}
+		Files.walkFileTree(dir, EnumSet.noneOf(FileVisitOption.class), recursive ? Integer.MAX_VALUE : 1, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+				if(!d.equals(dir)) {
+					entries.put(relative(dir, d), new Entry(true, 0, 0));
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				// directories beyond the depth are visited as files
+				if(attrs.isRegularFile()) {
+					entries.put(relative(dir, file), new Entry(false, attrs.size(), attrs.lastModifiedTime().to(TimeUnit.SECONDS)));
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return entries;
+	}
+
+	private static String relative(Path dir, Path path) {
+		return dir.relativize(path).toString().replace(File.separatorChar, '/');
+	}
+
+	private static void deleteTree(Path path) throws IOException {
+		if(Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+			Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					Files.delete(file);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+					if(e != null) {
+						throw e;
+					}
+					Files.delete(d);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} else {
+			Files.deleteIfExists(path);
+		}
+	}
+
+	private static String quote(String arg) {
+		return "'" + arg.replace("'", "'\\''") + "'";
+	}
+
+	/**
+	 * Parses the NUL separated type, path, size and modification time of each entry as they arrive
+	 */
+	private static final class ManifestParser extends OutputStream {
+		private final Map<String, Entry> entries = new TreeMap<>();
+		private final ByteArrayOutputStream field = new ByteArrayOutputStream();
+		private final String[] fields = new String[4];
+		private int index;
+
+		@Override
+		public void write(int b) {
+			if(b != 0) {
+				field.write(b);
+				return;
+			}
+			fields[index++] = new String(field.toByteArray(), StandardCharsets.UTF_8);
+			field.reset();
+			if(index == fields.length) {
+				index = 0;
+				String mtime = fields[3];
+				int dot = mtime.indexOf('.');
+				entries.put(fields[1], new Entry("d".equals(fields[0]), Long.parseLong(fields[2]),
+						Long.parseLong(dot < 0 ? mtime : mtime.substring(0, dot))));
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			for(int i = off; i < off + len; i++) {
+				write(b[i]);
+			}
+		}
+	}
+}
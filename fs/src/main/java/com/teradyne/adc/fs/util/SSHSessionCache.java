@@ -0,0 +1,209 @@
+package com.teradyne.adc.fs.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.sshd.client.SshClient;
+import org.apache.sshd.client.future.ConnectFuture;
+import org.apache.sshd.client.session.ClientSession;
+
+/**
+ * Package private cache of authenticated sessions shared by all {@link SSHShell} instances.
+ * Sessions are keyed by user, host and port, handed out as {@link Lease}s so that several
+ * callers can run channels on the same session, checked for health before reuse and
+ * closed once they have not been leased for the idle timeout. A session replaced, such as by one
+ * authenticated with another password, is closed once its last lease is closed.
+ * @author wangho
+ *
+ */
+class SSHSessionCache {
+
+	final static long DEFAULT_IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(1);
+
+	private final static SSHSessionCache shared = new SSHSessionCache(DEFAULT_IDLE_TIMEOUT);
+
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	private volatile long idleTimeout;
+	private SshClient client;
+	private ScheduledExecutorService evictor;
+	private ScheduledFuture<?> eviction;
+
+	SSHSessionCache(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	static SSHSessionCache getDefault() {
+		return shared;
+	}
+
+	/**
+	 * Change the idle timeout, the evictor is rescheduled so that a shorter timeout applies right away
+	 */
+	synchronized void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+		if(evictor != null) {
+			scheduleEviction();
+		}
+	}
+
+	/**
+	 * Get an authenticated session for the given target, reusing a cached one if it is still healthy
+	 * @return lease to be closed once the caller is done with the session
+	 * @throws IOException if connecting or authenticating fails
+	 */
+	Lease acquire(String user, String password, String host, int port) throws IOException {
+		String key = user + "@" + host + ":" + port;
+		for(;;) {
+			Entry entry = entries.computeIfAbsent(key, k -> new Entry());
+			synchronized (entry) {
+				if(entry.evicted) {
+					// lost the race against the evictor, look up the new entry
+					continue;
+				}
+				if(!entry.isHealthy() || !password.equals(entry.password)) {
+					entry.replace(connect(user, password, host, port), password);
+				}
+				entry.refs++;
+				return new Lease(entry, entry.session);
+			}
+		}
+	}
+
+	/**
+	 * Close all cached sessions which are not leased right now
+	 */
+	void closeIdle(long idleFor) {
+		long now = System.currentTimeMillis();
+		for(Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+			Entry entry = it.next();
+			synchronized (entry) {
+				if(entry.refs == 0 && now - entry.lastUsed >= idleFor) {
+					entry.replace(null, null);
+					entry.evicted = true;
+					it.remove();
+				}
+			}
+		}
+	}
+
+	private ClientSession connect(String user, String password, String host, int port) throws IOException {
+		ConnectFuture con = client().connect(user, host, port);
+		con.await();
+		ClientSession session = con.getSession();
+		try {
+			session.addPasswordIdentity(password);
+			session.auth().verify().await();
+		} catch (IOException | RuntimeException e) {
+			session.close(true);
+			throw e;
+		}
+		return session;
+	}
+
+	private synchronized SshClient client() {
+		if(client == null || !client.isOpen()) {
+			client = SshClient.setUpDefaultClient();
+			client.start();
+		}
+		if(evictor == null) {
+			evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "SSHSessionCache-evictor");
+				t.setDaemon(true);
+				return t;
+			});
+			scheduleEviction();
+		}
+		return client;
+	}
+
+	private void scheduleEviction() {
+		if(eviction != null) {
+			eviction.cancel(false);
+		}
+		long period = Math.max(1000, idleTimeout / 2);
+		eviction = evictor.scheduleWithFixedDelay(() -> closeIdle(idleTimeout), period, period, TimeUnit.MILLISECONDS);
+	}
+
+	private static class Entry {
+		private ClientSession session;
+		private String password;
+		private int refs;
+		private long lastUsed;
+		private boolean evicted;
+		// replaced sessions still leased -> number of their leases
+		private final Map<ClientSession, Integer> retired = new HashMap<>();
+
+		private boolean isHealthy() {
+			return session != null && session.isOpen() && !session.isClosing() && session.isAuthenticated();
+		}
+
+		/**
+		 * Swap the cached session, the previous one is closed gracefully once the leases still
+		 * holding it are closed, so that their channels are not cut off
+		 */
+		private void replace(ClientSession session, String password) {
+			if(this.session != null) {
+				if(refs > 0) {
+					retired.put(this.session, refs);
+				} else {
+					this.session.close(false);
+				}
+			}
+			this.session = session;
+			this.password = password;
+			// leases of the previous session are counted in retired, see Lease.close()
+			this.refs = 0;
+			this.lastUsed = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * A session taken from the cache, closing the lease gives the session back rather than closing it
+	 */
+	static class Lease implements Closeable {
+		private final Entry entry;
+		private final ClientSession session;
+		private boolean closed;
+
+		private Lease(Entry entry, ClientSession session) {
+			this.entry = entry;
+			this.session = session;
+		}
+
+		ClientSession session() {
+			return session;
+		}
+
+		@Override
+		public void close() {
+			synchronized (entry) {
+				if(closed) {
+					return;
+				}
+				closed = true;
+				if(entry.session == session) {
+					entry.refs--;
+					entry.lastUsed = System.currentTimeMillis();
+				} else {
+					Integer refs = entry.retired.remove(session);
+					if(refs == null) {
+						return;
+					}
+					if(refs > 1) {
+						entry.retired.put(session, refs - 1);
+					} else {
+						session.close(false);
+					}
+				}
+			}
+		}
+	}
+}
@@ -3,21 +3,25 @@
  */
 package com.teradyne.adc.fs.util;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.List;
-import org.apache.sshd.client.SshClient;
+import java.util.EnumSet;
 import org.apache.sshd.client.channel.ChannelExec;
 import org.apache.sshd.client.channel.ClientChannelEvent;
-import org.apache.sshd.client.future.ConnectFuture;
 import org.apache.sshd.client.scp.ScpClient;
 import org.apache.sshd.client.scp.ScpClient.Option;
-import org.apache.sshd.client.session.ClientSession;
+import org.apache.sshd.common.util.io.NoCloseInputStream;
 import org.apache.sshd.common.util.io.NoCloseOutputStream;
+import org.apache.sshd.common.util.io.NullOutputStream;
 
 /**
+ * Runs commands and copies files on a remote host. Authenticated sessions are cached
+ * per user, host and port and shared by all instances, so repeated calls on the same
+ * target do not pay for a new connection and key exchange.
  * @author wangho
  *
  */
@@ -27,6 +31,31 @@ public class SSHShell {
 	private String password;
 	private String host;
 	private int port;
+	private final SSHFolderSync sync = new SSHFolderSync() {
+		@Override
+		protected int exec(String cmd, InputStream in, OutputStream out) throws IOException {
+			try (SSHSessionCache.Lease lease = SSHSessionCache.getDefault().acquire(user, password, host, port);
+				ChannelExec channel = lease.session().createExecChannel(cmd)) {
+				channel.setIn(in == null ? new ByteArrayInputStream(new byte[0]) : new NoCloseInputStream(in));
+				channel.setErr(new NullOutputStream());
+				channel.open().verify();
+				// stdout is copied by this thread rather than by the I/O threads of the shared session, so that a
+				// failure writing it only fails this command
+				byte[] buf = new byte[64 * 1024];
+				try (InputStream stdout = channel.getInvertedOut()) {
+					int n;
+					while((n = stdout.read(buf)) >= 0) {
+						if(out != null) {
+							out.write(buf, 0, n);
+						}
+					}
+				}
+				channel.waitFor(EnumSet.of(ClientChannelEvent.CLOSED), 0);
+				Integer status = channel.getExitStatus();
+				return status == null ? -1 : status;
+			}
+		}
+	};
 
 	public SSHShell(String user, String password, String host, int port) throws IOException {
 		this.user = user;
@@ -35,66 +64,92 @@ public class SSHShell {
 		this.port = port;
 	}
 
+	/**
+	 * Set how long an authenticated session shared by all SSHShell instances is kept
+	 * open without being used before it is closed
+	 * @param millis idle timeout in milliseconds
+	 */
+	public static void setSessionIdleTimeout(long millis) {
+		SSHSessionCache.getDefault().setIdleTimeout(millis);
+	}
+	
+	/**
+	 * Close all cached sessions which are not in use right now
+	 */
+	public static void closeIdleSessions() {
+		SSHSessionCache.getDefault().closeIdle(0);
+	}
+
 	@SuppressWarnings("serial")
 	public void exec(String cmd, OutputStream out) throws IOException {
-		try (SshClient client = SshClient.setUpDefaultClient()) {
-			client.start();
-			ConnectFuture con = client.connect(user, host, port);
-			con.await();
-			try (ClientSession session = con.getSession()) {
-				session.addPasswordIdentity(password);
-				session.auth().verify().await();
-				
-				try(ChannelExec channel = session.createExecChannel(cmd)) {
-					channel.setOut(new NoCloseOutputStream(out));
+		try (SSHSessionCache.Lease lease = SSHSessionCache.getDefault().acquire(user, password, host, port);
+			ChannelExec channel = lease.session().createExecChannel(cmd)) {
+			channel.setOut(new NoCloseOutputStream(out));
 
-			        channel.open();
-			        channel.waitFor(new ArrayList<ClientChannelEvent>(){{add( ClientChannelEvent.CLOSED);}}, 0);
-			        channel.close(false);
-		          } finally {
-		              session.close(false);
-		          }
-			} finally {
-				client.stop();
-			}
+	        channel.open();
+	        channel.waitFor(new ArrayList<ClientChannelEvent>(){{add( ClientChannelEvent.CLOSED);}}, 0);
+	        channel.close(false);
 		}
 	}
 
+	/**
+	 * Compress folders copied or synchronized through a single tar stream with gzip where the remote host
+	 * has it, which is on by default
+	 * @param enabled whether folder transfers are compressed
+	 */
+	public void setCompressedTransfers(boolean enabled) {
+		sync.setCompression(enabled);
+	}
+
+	/**
+	 * Copy a local folder into a remote folder, as a single tar stream
+	 * @param incremental whether only the content of the local folder is copied into the remote folder, and
+	 * only the files missing or changed remotely, see {@link #syncFolderTo(String, String, boolean, boolean)}
+	 */
 	public void copyFolderTo(String remoteFolder, String localFolder, boolean recursive, boolean incremental) throws IOException {
-		List<Option> options = new ArrayList<>();
-		options.add(Option.TargetIsDirectory);
-		
-		if(recursive) {
-			options.add(Option.Recursive);
-		}
-		
 		if(incremental) {
-			localFolder = Paths.get(remoteFolder, "*").toString();
+			syncFolderTo(remoteFolder, localFolder, recursive, false);
+			return;
 		}
-		
-		scpTo(remoteFolder, localFolder, options.toArray(new Option[0]));
+		// into the folder named after the local one, where scp puts it
+		sync.copyTo(localFolder, (remoteFolder.endsWith("/") ? remoteFolder : remoteFolder + "/") + new File(localFolder).getName(), recursive);
+	}
+
+	/**
+	 * Make a remote folder hold the same files as a local folder, transferring only the files which are
+	 * missing remotely or differ in size or modification time, see {@link SSHFolderSync}
+	 * @param delete whether files of the remote folder missing locally are deleted
+	 */
+	public void syncFolderTo(String remoteFolder, String localFolder, boolean recursive, boolean delete) throws IOException {
+		sync.upload(localFolder, remoteFolder, recursive, delete);
 	}
 	
 	public void copyFolderTo(String remoteFile, String localFile) throws IOException {
 		scpTo(remoteFile, localFile);
 	}
 	
+	/**
+	 * Copy a remote folder into a local folder, as a single tar stream
+	 * @param incremental whether only the content of the remote folder is copied into the local folder, and
+	 * only the files missing or changed locally, see {@link #syncFolderFrom(String, String, boolean, boolean)}
+	 */
 	public void copyFolderFrom(String remoteFolder, String localFolder, boolean recursive, boolean incremental) throws IOException {
-		
-		List<Option> options = new ArrayList<>();
-		options.add(Option.TargetIsDirectory);
-		
-		if(recursive) {
-			options.add(Option.Recursive);
-		}
-		
 		if(incremental) {
-			if(!remoteFolder.endsWith("/")) {
-				remoteFolder += "/";
-			}
-			remoteFolder += "*";
+			syncFolderFrom(remoteFolder, localFolder, recursive, false);
+			return;
 		}
-		scpFrom(remoteFolder, localFolder, options.toArray(new Option[0]));
+		String name = remoteFolder.replaceAll("/+$", "");
+		// into the folder named after the remote one, where scp puts it
+		sync.copyFrom(remoteFolder, new File(localFolder, name.substring(name.lastIndexOf('/') + 1)).getPath(), recursive);
+	}
+
+	/**
+	 * Make a local folder hold the same files as a remote folder, transferring only the files which are
+	 * missing locally or differ in size or modification time, see {@link SSHFolderSync}
+	 * @param delete whether files of the local folder missing remotely are deleted
+	 */
+	public void syncFolderFrom(String remoteFolder, String localFolder, boolean recursive, boolean delete) throws IOException {
+		sync.download(remoteFolder, localFolder, recursive, delete);
 	}
 	
 	public void copyFileFrom(String remoteFile, String localPath) throws IOException {
@@ -102,36 +157,16 @@ public class SSHShell {
 	}
 
 	private void scpFrom(String remotePath, String localPath, Option... options) throws IOException {
-		try (SshClient client = SshClient.setUpDefaultClient()) {
-			client.start();
-			ConnectFuture con = client.connect(user, host, port);
-			con.await();
-			try (ClientSession session = con.getSession()) {
-				session.addPasswordIdentity(password);
-				session.auth().verify().await();
-				ScpClient scp = session.createScpClient();
-				scp.download(remotePath, localPath, options);
-				session.close();
-			} finally {
-				client.stop();
-			}
+		try (SSHSessionCache.Lease lease = SSHSessionCache.getDefault().acquire(user, password, host, port)) {
+			ScpClient scp = lease.session().createScpClient();
+			scp.download(remotePath, localPath, options);
 		}
 	}
 	
 	private void scpTo(String remotePath, String localPath, Option... options) throws IOException {
-		try (SshClient client = SshClient.setUpDefaultClient()) {
-			client.start();
-			ConnectFuture con = client.connect(user, host, port);
-			con.await();
-			try (ClientSession session = con.getSession()) {
-				session.addPasswordIdentity(password);
-				session.auth().verify().await();
-				ScpClient scp = session.createScpClient();
-				scp.upload(localPath, remotePath, options);
-				session.close();
-			} finally {
-				client.stop();
-			}
+		try (SSHSessionCache.Lease lease = SSHSessionCache.getDefault().acquire(user, password, host, port)) {
+			ScpClient scp = lease.session().createScpClient();
+			scp.upload(localPath, remotePath, options);
 		}
 	}
 }
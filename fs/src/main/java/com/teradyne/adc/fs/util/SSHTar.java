@@ -0,0 +1,480 @@
+package com.teradyne.adc.fs.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Package private writer and reader of tar archives in the GNU format, so that a directory is transferred
+ * in a single stream through the <code>tar</code> of the remote host. Regular files and directories are
+ * archived with their permissions and modification time, names longer than a header holds are written as
+ * GNU long name entries. The reader also understands POSIX ustar and pax headers and symbolic links, as
+ * written by other versions of <code>tar</code>.
+ * @author wangho
+ *
+ */
+class SSHTar {
+
+	private final static int BLOCK = 512;
+	// archives are padded to a whole record, which tar expects when reading from a pipe
+	private final static int RECORD = 20 * BLOCK;
+	private final static String LONG_LINK = "././@LongLink";
+	private final static boolean POSIX = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+
+	private SSHTar() {
+	}
+
+	/**
+	 * Archive entries of a local directory, regular files with their content and directories
+	 * @param root local directory the paths are relative to
+	 * @param paths relative paths with forward slashes, parents before their children, other types of
+	 * files and paths which no longer exist are left out
+	 * @param out receives the archive, it is not closed
+	 * @throws IOException if a file cannot be read or changed size while archived
+	 */
+	static void write(Path root, Collection<String> paths, OutputStream out) throws IOException {
+		long written = 0;
+		byte[] buf = new byte[64 * 1024];
+		for(String path : paths) {
+			Path file = root.resolve(path);
+			BasicFileAttributes attrs;
+			try {
+				attrs = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			} catch (IOException e) {
+				continue;
+			}
+			long mtime = attrs.lastModifiedTime().to(TimeUnit.SECONDS);
+			int mode = mode(file, attrs);
+			if(attrs.isDirectory()) {
+				written += header(out, path + "/", '5', mode, 0, mtime);
+			} else if(attrs.isRegularFile()) {
+				long size = attrs.size();
+				written += header(out, path, '0', mode, size, mtime);
+				try (InputStream in = new FileInputStream(file.toFile())) {
+					long remaining = size;
+					while(remaining > 0) {
+						int n = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+						if(n < 0) {
+							throw new IOException("File " + file + " shrank while archived");
+						}
+						out.write(buf, 0, n);
+						remaining -= n;
+					}
+				}
+				written += size + pad(out, size);
+			}
+		}
+		// two zero blocks end the archive
+		byte[] zero = new byte[BLOCK];
+		out.write(zero);
+		out.write(zero);
+		written += 2 * BLOCK;
+		while(written % RECORD != 0) {
+			out.write(zero);
+			written += BLOCK;
+		}
+		out.flush();
+	}
+
+	/**
+	 * Extract an archive into a local directory. Modification times and permissions of directories are set
+	 * once all their entries are extracted, symbolic links are created last so that no entry is extracted
+	 * through a link of the archive.
+	 * @param in archive, read up to its end
+	 * @param root local directory receiving the entries, created if missing
+	 * @throws IOException if the archive is corrupt or has an entry outside of the directory
+	 */
+	static void extract(InputStream in, Path root) throws IOException {
+		Files.createDirectories(root);
+		Map<Path, long[]> dirs = new LinkedHashMap<>();
+		Map<Path, String> links = new LinkedHashMap<>();
+		byte[] header = new byte[BLOCK];
+		byte[] buf = new byte[64 * 1024];
+		String longName = null;
+		String longLink = null;
+		Map<String, String> pax = new LinkedHashMap<>();
+		while(true) {
+			if(!readBlock(in, header)) {
+				break;
+			}
+			if(isZero(header)) {
+				break;
+			}
+			verifyChecksum(header);
+			char type = (char) header[156];
+			long size = number(header, 124, 12);
+			if(type == 'L' || type == 'K' || type == 'x' || type == 'g') {
+				byte[] data = readData(in, size);
+				if(type == 'L') {
+					longName = string(data, 0, data.length);
+				} else if(type == 'K') {
+					longLink = string(data, 0, data.length);
+				} else if(type == 'x') {
+					parsePax(data, pax);
+				}
+				continue;
+			}
+
+			String name = longName != null ? longName : name(header);
+			String linkName = longLink != null ? longLink : string(header, 157, 100);
+			long mtime = number(header, 136, 12);
+			int mode = (int) number(header, 100, 8) & 07777;
+			if(pax.containsKey("path")) {
+				name = pax.get("path");
+			}
+			if(pax.containsKey("linkpath")) {
+				linkName = pax.get("linkpath");
+			}
+			if(pax.containsKey("size")) {
+				size = Long.parseLong(pax.get("size"));
+			}
+			if(pax.containsKey("mtime")) {
+				String value = pax.get("mtime");
+				int dot = value.indexOf('.');
+				mtime = Long.parseLong(dot < 0 ? value : value.substring(0, dot));
+			}
+			longName = null;
+			longLink = null;
+			pax.clear();
+
+			Path target = resolve(root, name);
+			if(type == '5') {
+				Files.createDirectories(target);
+				dirs.put(target, new long[] { mode, mtime });
+				skip(in, size, buf);
+			} else if(type == '0' || type == '\0' || type == '7') {
+				Files.createDirectories(target.getParent());
+				// replaced rather than written through, whether a link or a read only file
+				if(Files.exists(target, LinkOption.NOFOLLOW_LINKS) && !Files.isDirectory(target, LinkOption.NOFOLLOW_LINKS)) {
+					Files.delete(target);
+				}
+				try (OutputStream out = new FileOutputStream(target.toFile())) {
+					copy(in, out, size, buf);
+				}
+				skip(in, pad(size), buf);
+				finish(target, mode, mtime);
+			} else if(type == '1') {
+				Path source = resolve(root, linkName);
+				Files.createDirectories(target.getParent());
+				Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+				skip(in, size, buf);
+			} else if(type == '2') {
+				links.put(target, linkName);
+				skip(in, size, buf);
+			} else {
+				// devices, fifos and unknown types are not extracted
+				skip(in, size, buf);
+			}
+		}
+		// the rest of the last record, and whatever follows it
+		while(in.read(buf) >= 0) {
+			// discarded
+		}
+		for(Map.Entry<Path, String> link : links.entrySet()) {
+			Path target = link.getKey();
+			Files.createDirectories(target.getParent());
+			if(Files.exists(target, LinkOption.NOFOLLOW_LINKS) && !Files.isDirectory(target, LinkOption.NOFOLLOW_LINKS)) {
+				Files.delete(target);
+			}
+			try {
+				Files.createSymbolicLink(target, Paths.get(link.getValue()));
+			} catch (UnsupportedOperationException e) {
+				// symbolic links are not supported by the local file system
+			}
+		}
+		// deepest first, as setting the time of a directory is undone by changes of its entries
+		List<Path> sorted = new ArrayList<>(dirs.keySet());
+		sorted.sort((a, b) -> b.getNameCount() - a.getNameCount());
+		for(Path dir : sorted) {
+			long[] attrs = dirs.get(dir);
+			finish(dir, (int) attrs[0], attrs[1]);
+		}
+	}
+
+	/**
+	 * Write a header block, preceded by a long name entry if the name does not fit
+	 * @return number of bytes written
+	 */
+	private static long header(OutputStream out, String name, char type, int mode, long size, long mtime) throws IOException {
+		long written = 0;
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		if(nameBytes.length > 100) {
+			written += longEntry(out, 'L', nameBytes);
+		}
+		byte[] header = new byte[BLOCK];
+		System.arraycopy(nameBytes, 0, header, 0, Math.min(nameBytes.length, 100));
+		octal(header, 100, 8, mode);
+		octal(header, 108, 8, 0);
+		octal(header, 116, 8, 0);
+		number(header, 124, 12, size);
+		number(header, 136, 12, Math.max(mtime, 0));
+		header[156] = (byte) type;
+		byte[] magic = "ustar  \0".getBytes(StandardCharsets.US_ASCII);
+		System.arraycopy(magic, 0, header, 257, magic.length);
+		checksum(header);
+		out.write(header);
+		return written + BLOCK;
+	}
+
+	private static long longEntry(OutputStream out, char type, byte[] value) throws IOException {
+		long size = value.length + 1;
+		long written = header(out, LONG_LINK, type, 0, size, 0);
+		out.write(value);
+		out.write(0);
+		return written + size + pad(out, size);
+	}
+
+	private static int pad(OutputStream out, long size) throws IOException {
+		int pad = pad(size);
+		out.write(new byte[pad]);
+		return pad;
+	}
+
+	private static int pad(long size) {
+		return (int) ((BLOCK - size % BLOCK) % BLOCK);
+	}
+
+	private static void octal(byte[] header, int offset, int length, long value) {
+		String digits = Long.toOctalString(value);
+		StringBuilder sb = new StringBuilder();
+		for(int i = digits.length(); i < length - 1; i++) {
+			sb.append('0');
+		}
+		byte[] bytes = sb.append(digits).toString().getBytes(StandardCharsets.US_ASCII);
+		System.arraycopy(bytes, 0, header, offset, length - 1);
+	}
+
+	/**
+	 * Write a number in octal, or in base 256 as GNU tar does if it has too many digits
+	 */
+	private static void number(byte[] header, int offset, int length, long value) {
+		if(value < 1L << (3 * (length - 1))) {
+			octal(header, offset, length, value);
+			return;
+		}
+		for(int i = offset + length - 1; i > offset; i--) {
+			header[i] = (byte) value;
+			value >>>= 8;
+		}
+		header[offset] = (byte) 0x80;
+	}
+
+	private static long number(byte[] header, int offset, int length) throws IOException {
+		if((header[offset] & 0x80) != 0) {
+			long value = header[offset] & 0x7f;
+			for(int i = offset + 1; i < offset + length; i++) {
+				value = (value << 8) | (header[i] & 0xff);
+			}
+			return value;
+		}
+		long value = 0;
+		for(int i = offset; i < offset + length; i++) {
+			byte b = header[i];
+			if(b == 0 || (b == ' ' && value > 0)) {
+				break;
+			}
+			if(b == ' ') {
+				continue;
+			}
+			if(b < '0' || b > '7') {
+				throw new IOException("Corrupt tar header, invalid number");
+			}
+			value = value * 8 + (b - '0');
+		}
+		return value;
+	}
+
+	private static void checksum(byte[] header) {
+		for(int i = 148; i < 156; i++) {
+			header[i] = ' ';
+		}
+		long sum = 0;
+		for(byte b : header) {
+			sum += b & 0xff;
+		}
+		octal(header, 148, 7, sum);
+	}
+
+	private static void verifyChecksum(byte[] header) throws IOException {
+		long expected = number(header, 148, 8);
+		long sum = 0;
+		for(int i = 0; i < BLOCK; i++) {
+			sum += i >= 148 && i < 156 ? ' ' : header[i] & 0xff;
+		}
+		if(sum != expected) {
+			throw new IOException("Corrupt tar header, checksum mismatch");
+		}
+	}
+
+	/**
+	 * @return name of a header, with the prefix of POSIX ustar headers
+	 */
+	private static String name(byte[] header) {
+		String name = string(header, 0, 100);
+		String magic = string(header, 257, 6);
+		if("ustar".equals(magic) && header[262] == 0) {
+			String prefix = string(header, 345, 155);
+			if(!prefix.isEmpty()) {
+				return prefix + "/" + name;
+			}
+		}
+		return name;
+	}
+
+	private static String string(byte[] bytes, int offset, int length) {
+		int end = offset;
+		while(end < offset + length && bytes[end] != 0) {
+			end++;
+		}
+		return new String(bytes, offset, end - offset, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Parse the records <code>length key=value\n</code> of a pax extended header
+	 */
+	private static void parsePax(byte[] data, Map<String, String> pax) throws IOException {
+		int pos = 0;
+		while(pos < data.length && data[pos] != 0) {
+			int space = pos;
+			while(space < data.length && data[space] != ' ') {
+				space++;
+			}
+			int length;
+			try {
+				length = Integer.parseInt(new String(data, pos, space - pos, StandardCharsets.US_ASCII));
+			} catch (NumberFormatException e) {
+				throw new IOException("Corrupt pax header");
+			}
+			if(length <= 0 || pos + length > data.length) {
+				throw new IOException("Corrupt pax header");
+			}
+			String record = new String(data, space + 1, pos + length - space - 2, StandardCharsets.UTF_8);
+			int equals = record.indexOf('=');
+			if(equals > 0) {
+				pax.put(record.substring(0, equals), record.substring(equals + 1));
+			}
+			pos += length;
+		}
+	}
+
+	/**
+	 * @return local path of an entry, which must be below the root
+	 */
+	private static Path resolve(Path root, String name) throws IOException {
+		Path path = root;
+		for(String part : name.split("/")) {
+			if(part.isEmpty() || part.equals(".")) {
+				continue;
+			}
+			if(part.equals("..") || name.startsWith("/")) {
+				throw new IOException("Tar entry " + name + " is outside of " + root);
+			}
+			path = path.resolve(part);
+		}
+		return path;
+	}
+
+	private static int mode(Path file, BasicFileAttributes attrs) throws IOException {
+		if(POSIX) {
+			int mode = 0;
+			Set<PosixFilePermission> permissions = Files.readAttributes(file, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS).permissions();
+			for(PosixFilePermission permission : permissions) {
+				mode |= 0400 >> permission.ordinal();
+			}
+			return mode;
+		}
+		return attrs.isDirectory() || Files.isExecutable(file) ? 0755 : 0644;
+	}
+
+	private static void finish(Path path, int mode, long mtime) throws IOException {
+		if(POSIX) {
+			Set<PosixFilePermission> permissions = EnumSet.noneOf(PosixFilePermission.class);
+			for(PosixFilePermission permission : PosixFilePermission.values()) {
+				if((mode & (0400 >> permission.ordinal())) != 0) {
+					permissions.add(permission);
+				}
+			}
+			Files.setPosixFilePermissions(path, permissions);
+		}
+		Files.setLastModifiedTime(path, FileTime.from(mtime, TimeUnit.SECONDS));
+	}
+
+	private static boolean readBlock(InputStream in, byte[] block) throws IOException {
+		int off = 0;
+		while(off < block.length) {
+			int n = in.read(block, off, block.length - off);
+			if(n < 0) {
+				if(off == 0) {
+					return false;
+				}
+				throw new EOFException("Truncated tar archive");
+			}
+			off += n;
+		}
+		return true;
+	}
+
+	private static boolean isZero(byte[] block) {
+		for(byte b : block) {
+			if(b != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static byte[] readData(InputStream in, long size) throws IOException {
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		byte[] buf = new byte[BLOCK];
+		copy(in, data, size, buf);
+		skip(in, pad(size), buf);
+		return data.toByteArray();
+	}
+
+	private static void copy(InputStream in, OutputStream out, long size, byte[] buf) throws IOException {
+		long remaining = size;
+		while(remaining > 0) {
+			int n = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+			if(n < 0) {
+				throw new EOFException("Truncated tar archive");
+			}
+			out.write(buf, 0, n);
+			remaining -= n;
+		}
+	}
+
+	private static void skip(InputStream in, long size, byte[] buf) throws IOException {
+		copy(in, new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}, size, buf);
+	}
+}
@@ -0,0 +1,100 @@
+package com.teradyne.adc.fs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.server.Command;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.server.scp.ScpCommandFactory;
+import org.apache.sshd.server.shell.ProcessShellFactory;
+import org.apache.sshd.server.subsystem.sftp.SftpSubsystemFactory;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Commands run through the persistent shell against an embedded SSH server running them with the local
+ * <code>sh</code>, so that a command ending the shell shows up as a failure of the next command.
+ */
+public class SSHPersistentShellTest {
+
+	private Path work;
+	private SshServer sshd;
+	private SSHLinuxFileSystem fs;
+
+	@Before
+	public void initialize() throws IOException {
+		Assume.assumeTrue(Files.isExecutable(Paths.get("/bin/sh")));
+		work = Files.createTempDirectory("ssh-persistent-shell-test");
+		sshd = SshServer.setUpDefaultServer();
+		sshd.setPort(0);
+		SimpleGeneratorHostKeyProvider keys = new SimpleGeneratorHostKeyProvider(work.resolve("hostkey.ser"));
+		keys.setAlgorithm("RSA");
+		sshd.setKeyPairProvider(keys);
+		sshd.setPasswordAuthenticator((user, password, session) -> true);
+		sshd.setCommandFactory(new ScpCommandFactory.Builder()
+				.withDelegate(cmd -> new ProcessShellFactory(new String[] { "/bin/sh", "-c", cmd }).create()).build());
+		sshd.setSubsystemFactories(Collections.<NamedFactory<Command>>singletonList(new SftpSubsystemFactory()));
+		sshd.start();
+		fs = new SSHLinuxFileSystem("/", System.getProperty("user.name"), "test", "localhost", sshd.getPort(), 4);
+		fs.setPersistentShell(true);
+	}
+
+	@After
+	public void close() throws IOException {
+		if(fs != null) {
+			fs.close();
+		}
+		if(sshd != null) {
+			sshd.stop(true);
+		}
+		try (Stream<Path> walk = Files.walk(work)) {
+			for(Path path : walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+				Files.delete(path);
+			}
+		}
+	}
+
+	@Test
+	public void truncate() throws IOException {
+		Path file = work.resolve("file");
+		Files.write(file, "hello world".getBytes("UTF-8"));
+		fs.truncate(file.toString(), 5);
+		assertArrayEquals("hello".getBytes("UTF-8"), Files.readAllBytes(file));
+	}
+
+	@Test
+	public void truncateMissingFile() throws IOException {
+		String missing = work.resolve("missing").toString();
+		try {
+			fs.truncate(missing, 0);
+			fail(missing + " truncated");
+		} catch (NoSuchFileException e) {
+			assertEquals(missing, e.getFile());
+		}
+		// the shell is still there
+		Path file = work.resolve("file");
+		Files.write(file, "hello world".getBytes("UTF-8"));
+		fs.truncate(file.toString(), 0);
+		assertEquals(0, Files.size(file));
+	}
+
+	@Test(expected = IOException.class)
+	public void truncateDirectory() throws IOException {
+		fs.truncate(work.toString(), 0);
+	}
+}
@@ -9,12 +9,24 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.teradyne.adc.fs.SSHDigestAlgorithm;
 import com.teradyne.adc.fs.SSHFileOutputStream;
 import com.teradyne.adc.fs.SSHLinuxFile;
 import com.teradyne.adc.fs.SSHLinuxFileSystem;
@@ -42,6 +54,16 @@ public class SSHLinuxFileSystemTest {
 		System.out.println(System.currentTimeMillis() - t);
 	}
 	
+	@Test
+	public void getFileAgain() throws IOException {
+		for (int i = 0; i < 2; i++) {
+			// the second call finds the local copy up to date
+			long t = System.currentTimeMillis();
+			File f = fs.getPath("/root/Desktop/DEMO.sh").toFile();
+			System.out.println(f.length() + " " + (System.currentTimeMillis() - t));
+		}
+	}
+
 	@Test
 	public void getFileMD5() throws IOException {
 		System.out.println(fs.getUtils().getMD5("/root/Desktop/DEMO.sh"));
@@ -54,6 +76,36 @@ public class SSHLinuxFileSystemTest {
 		
 	}
 	
+	@Test
+	public void parallelMD5() throws Exception {
+		long t = System.currentTimeMillis();
+		ExecutorService executor = Executors.newFixedThreadPool(32);
+		List<Future<String>> results = new ArrayList<>();
+		for (int i = 0; i < 320; i++) {
+			results.add(executor.submit(() -> fs.getUtils().getMD5("/root/Desktop/DEMO.sh")));
+		}
+		for (Future<String> result : results) {
+			result.get();
+		}
+		executor.shutdown();
+		System.out.println(System.currentTimeMillis() - t);
+		System.out.println(fs.getChannelPoolStatistics());
+	}
+	
+	@Test
+	public void getFileAttributesInBulk() throws IOException {
+		long t = System.currentTimeMillis();
+		List<Path> paths = new ArrayList<>();
+		paths.add(fs.getPath("/root/Desktop/DEMO.sh"));
+		paths.add(fs.getPath("/root/Desktop/ToTest"));
+		paths.add(fs.getPath("/root/Desktop/notexist"));
+		Map<Path, PosixFileAttributes> attrs = fs.getFileAttributes(paths);
+		System.out.println(System.currentTimeMillis() - t);
+		for (Map.Entry<Path, PosixFileAttributes> entry : attrs.entrySet()) {
+			System.out.println(entry.getKey() + " " + (entry.getValue() == null ? "missing" : entry.getValue().size()));
+		}
+	}
+	
 	@Test
 	public void remotecopy() throws IOException {
 		long t1 = System.currentTimeMillis();
@@ -153,6 +205,46 @@ public class SSHLinuxFileSystemTest {
 		fs.getPath("/var/local").toFile();// result from linux -> PC  10Mb/s
 	}
 	
+	@Test
+	public void listFolder() throws IOException {
+		long start = System.currentTimeMillis();
+		int count = 0;
+		try(DirectoryStream<Path> entries = fs.newDirectoryStream(fs.getPath("/root/Desktop"), "*.sh")) {
+			for(Path entry : entries) {
+				System.out.println(entry + " " + fs.getFileAttributes(entry).size());
+				count++;
+			}
+		} finally {
+			System.out.println(count + " entries in " + (System.currentTimeMillis() - start) + "ms");
+		}
+		System.out.println(fs.getAttributeCacheStatistics());
+	}
+	
+	@Test
+	public void readFileTail() throws IOException {
+		long start = System.currentTimeMillis();
+		SSHLinuxPath path = (SSHLinuxPath) fs.getPath("/root/Desktop/DEMO.sh");
+		try(SeekableByteChannel channel = path.newByteChannel()) {
+			ByteBuffer buffer = ByteBuffer.allocate(4096);
+			channel.position(Math.max(0, channel.size() - buffer.capacity()));
+			while(buffer.hasRemaining() && channel.read(buffer) > 0);
+			System.out.println(new String(buffer.array(), 0, buffer.position()));
+		} finally {
+			System.out.println(System.currentTimeMillis() - start);
+		}
+	}
+	
+	@Test
+	public void hashFolder() throws IOException {
+		SSHDigestAlgorithm algorithm = fs.getUtils().getDigestAlgorithm();
+		for (int i = 0; i < 2; i++) {
+			// the second sweep is served from the digest cache
+			long start = System.currentTimeMillis();
+			Map<String, String> digests = fs.getUtils().getTreeDigests("/root/Desktop", algorithm);
+			System.out.println(algorithm + " " + digests.size() + " " + (System.currentTimeMillis() - start));
+		}
+	}
+	
 	@Test
 	public void overallTest() throws IOException {
 		this.putFolder();
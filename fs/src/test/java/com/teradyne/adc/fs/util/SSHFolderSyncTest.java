@@ -0,0 +1,154 @@
+package com.teradyne.adc.fs.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Incremental syncs of a tree of 100 files through {@link SSHFolderSync}, with the commands of the remote
+ * host run by the local <code>sh</code>. Runs without a remote host.
+ */
+public class SSHFolderSyncTest {
+
+	private static final int FILES = 100;
+
+	private Path work;
+	private Path local;
+	private String remote;
+	private final List<String> commands = new ArrayList<>();
+	private final SSHFolderSync sync = new SSHFolderSync() {
+		@Override
+		protected int exec(String cmd, InputStream in, OutputStream out) throws IOException {
+			commands.add(cmd);
+			Process process = new ProcessBuilder("sh", "-c", cmd).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+			Thread writer = new Thread(() -> {
+				try (OutputStream stdin = process.getOutputStream()) {
+					if(in != null) {
+						copy(in, stdin);
+					}
+				} catch (IOException e) {
+					// reported by the exit status
+				}
+			});
+			writer.start();
+			try (InputStream stdout = process.getInputStream()) {
+				copy(stdout, out);
+				writer.join();
+				return process.waitFor();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+		}
+	};
+
+	@Before
+	public void initialize() throws IOException {
+		Assume.assumeTrue(Files.isExecutable(Paths.get("/bin/sh")));
+		work = Files.createTempDirectory("ssh-folder-sync-test");
+		local = work.resolve("local");
+		remote = work.resolve("remote").toString();
+		for(int i = 0; i < FILES; i++) {
+			Path file = local.resolve("dir" + i % 10).resolve("file" + i + ".txt");
+			Files.createDirectories(file.getParent());
+			Files.write(file, ("content of file " + i).getBytes("UTF-8"));
+		}
+		sync.setCompression(false);
+	}
+
+	@After
+	public void close() throws IOException {
+		try (Stream<Path> walk = Files.walk(work)) {
+			for(Path path : walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+				Files.delete(path);
+			}
+		}
+	}
+
+	@Test
+	public void uploadUnchangedTree() throws IOException {
+		sync.upload(local.toString(), remote, true, false);
+		assertSameFiles(local, Paths.get(remote));
+
+		commands.clear();
+		long start = System.currentTimeMillis();
+		sync.upload(local.toString(), remote, true, false);
+		System.out.println(FILES + " unchanged files uploaded in " + (System.currentTimeMillis() - start) + " ms");
+		// the manifest of the remote directory, then creating it if needed, and no transfer
+		assertEquals(commands.toString(), 2, commands.size());
+		assertFalse(commands.toString(), commands.get(1).contains("tar"));
+	}
+
+	@Test
+	public void downloadUnchangedTree() throws IOException {
+		Path target = work.resolve("target");
+		sync.download(local.toString(), target.toString(), true, false);
+		assertSameFiles(local, target);
+
+		commands.clear();
+		long start = System.currentTimeMillis();
+		sync.download(local.toString(), target.toString(), true, false);
+		System.out.println(FILES + " unchanged files downloaded in " + (System.currentTimeMillis() - start) + " ms");
+		// the manifest of the remote directory only
+		assertEquals(commands.toString(), 1, commands.size());
+	}
+
+	@Test
+	public void uploadChangedFile() throws IOException {
+		sync.upload(local.toString(), remote, true, false);
+		Path changed = local.resolve("dir3/file13.txt");
+		Files.write(changed, "changed".getBytes("UTF-8"));
+		Object untouched = Files.readAttributes(Paths.get(remote, "dir4/file14.txt"), "unix:ino").get("ino");
+
+		sync.upload(local.toString(), remote, true, false);
+		assertSameFiles(local, Paths.get(remote));
+		assertEquals("unchanged file rewritten", untouched, Files.readAttributes(Paths.get(remote, "dir4/file14.txt"), "unix:ino").get("ino"));
+	}
+
+	private static void assertSameFiles(Path expected, Path actual) throws IOException {
+		List<Path> files = files(expected);
+		assertEquals(files, files(actual));
+		assertEquals(FILES, files.size());
+		for(Path file : files) {
+			assertArrayEquals(file.toString(), Files.readAllBytes(expected.resolve(file)), Files.readAllBytes(actual.resolve(file)));
+			assertEquals(file.toString(), Files.getLastModifiedTime(expected.resolve(file)).toMillis() / 1000,
+					Files.getLastModifiedTime(actual.resolve(file)).toMillis() / 1000);
+		}
+	}
+
+	/**
+	 * @return regular files below a directory relative to it
+	 */
+	private static List<Path> files(Path root) throws IOException {
+		try (Stream<Path> walk = Files.walk(root)) {
+			return walk.filter(Files::isRegularFile).map(root::relativize).sorted().collect(Collectors.toList());
+		}
+	}
+
+	private static void copy(InputStream in, OutputStream out) throws IOException {
+		byte[] buf = new byte[64 * 1024];
+		int n;
+		while((n = in.read(buf)) >= 0) {
+			if(out != null) {
+				out.write(buf, 0, n);
+			}
+		}
+	}
+}
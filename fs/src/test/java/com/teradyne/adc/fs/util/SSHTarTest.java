@@ -0,0 +1,233 @@
+package com.teradyne.adc.fs.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Round trips of directories through {@link SSHTar}, and archives of the local <code>tar</code> in the formats
+ * other versions of tar write. Runs without a remote host.
+ */
+public class SSHTarTest {
+
+	private static final boolean POSIX = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+	// longer than the 100 bytes of the name field, and than its 155 bytes of ustar prefix
+	private static final String LONG_DIR = repeat('d', 90) + "/" + repeat('e', 90);
+	private static final String LONG_FILE = LONG_DIR + "/" + repeat('f', 120) + ".txt";
+	// longer than the name field, held by the ustar prefix
+	private static final String PREFIXED_FILE = "sub/" + repeat('m', 60) + "/" + repeat('n', 60);
+
+	private Path work;
+	private Path source;
+
+	@Before
+	public void initialize() throws IOException {
+		work = Files.createTempDirectory("ssh-tar-test");
+		source = work.resolve("source");
+		Files.createDirectories(source.resolve("sub/empty"));
+		Files.createDirectories(source.resolve(LONG_DIR));
+		byte[] large = new byte[3 * 512 * 1024 + 17];
+		new Random(42).nextBytes(large);
+		Files.write(source.resolve("sub/large.bin"), large);
+		Files.write(source.resolve("sub/run.sh"), "#!/bin/sh\necho hello\n".getBytes("UTF-8"));
+		Files.write(source.resolve("-dash"), new byte[0]);
+		Files.write(source.resolve(LONG_FILE), "long name".getBytes("UTF-8"));
+		Files.createDirectories(source.resolve(PREFIXED_FILE).getParent());
+		Files.write(source.resolve(PREFIXED_FILE), "prefixed name".getBytes("UTF-8"));
+		if(POSIX) {
+			Files.setPosixFilePermissions(source.resolve("sub/run.sh"), PosixFilePermissions.fromString("rwxr-x---"));
+			Files.setPosixFilePermissions(source.resolve("sub/large.bin"), PosixFilePermissions.fromString("rw-------"));
+			Files.setPosixFilePermissions(source.resolve("sub/empty"), PosixFilePermissions.fromString("rwx------"));
+		}
+		long time = TimeUnit.DAYS.toSeconds(10000);
+		for(Path path : paths(source)) {
+			Files.setLastModifiedTime(source.resolve(path), FileTime.from(time++, TimeUnit.SECONDS));
+		}
+	}
+
+	@After
+	public void close() throws IOException {
+		try (Stream<Path> walk = Files.walk(work)) {
+			for(Path path : walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+				if(!Files.isSymbolicLink(path)) {
+					path.toFile().setWritable(true);
+				}
+				Files.delete(path);
+			}
+		}
+	}
+
+	@Test
+	public void roundTrip() throws IOException {
+		ByteArrayOutputStream archive = new ByteArrayOutputStream();
+		SSHTar.write(source, names(source), archive);
+		assertEquals("archive padded to whole records", 0, archive.size() % 10240);
+
+		Path target = work.resolve("target");
+		SSHTar.extract(new ByteArrayInputStream(archive.toByteArray()), target);
+		assertSameTree(source, target);
+	}
+
+	@Test
+	public void extractedByTar() throws IOException, InterruptedException {
+		Assume.assumeTrue(hasTar());
+		ByteArrayOutputStream archive = new ByteArrayOutputStream();
+		SSHTar.write(source, names(source), archive);
+
+		Path target = work.resolve("target");
+		Files.createDirectories(target);
+		run(archive.toByteArray(), "tar", "-xpf", "-", "-C", target.toString());
+		assertSameTree(source, target);
+	}
+
+	@Test
+	public void extractsArchivesOfTar() throws IOException, InterruptedException {
+		Assume.assumeTrue(hasTar());
+		Files.createSymbolicLink(source.resolve("sub/link"), Paths.get("run.sh"));
+		for(String format : new String[] { "gnu", "ustar", "pax" }) {
+			List<String> cmd = new ArrayList<>(Arrays.asList("tar", "--format=" + format, "-cf", "-", "-C", source.toString()));
+			if(format.equals("ustar")) {
+				// names longer than its prefix and name fields are refused by ustar
+				Files.move(source.resolve(LONG_FILE), work.resolve("long"));
+				cmd.add("--exclude=./" + LONG_DIR.substring(0, LONG_DIR.indexOf('/')));
+			}
+			cmd.add(".");
+			byte[] archive = run(null, cmd.toArray(new String[0]));
+
+			Path target = work.resolve("target-" + format);
+			SSHTar.extract(new ByteArrayInputStream(archive), target);
+			if(format.equals("ustar")) {
+				Files.move(work.resolve("long"), source.resolve(LONG_FILE));
+				assertFalse(Files.exists(target.resolve(LONG_DIR)));
+			} else {
+				assertArrayEquals(format, Files.readAllBytes(source.resolve(LONG_FILE)), Files.readAllBytes(target.resolve(LONG_FILE)));
+			}
+			assertArrayEquals(format, Files.readAllBytes(source.resolve(PREFIXED_FILE)), Files.readAllBytes(target.resolve(PREFIXED_FILE)));
+			assertArrayEquals(format, Files.readAllBytes(source.resolve("sub/large.bin")), Files.readAllBytes(target.resolve("sub/large.bin")));
+			assertEquals(format, Paths.get("run.sh"), Files.readSymbolicLink(target.resolve("sub/link")));
+			assertEquals(format, Files.getLastModifiedTime(source.resolve("sub/run.sh")), Files.getLastModifiedTime(target.resolve("sub/run.sh")));
+			if(POSIX) {
+				assertEquals(format, Files.getPosixFilePermissions(source.resolve("sub/run.sh")), Files.getPosixFilePermissions(target.resolve("sub/run.sh")));
+			}
+		}
+	}
+
+	@Test
+	public void rejectsEntriesOutsideOfTheDirectory() throws IOException, InterruptedException {
+		Assume.assumeTrue(hasTar());
+		byte[] archive = run(null, "tar", "--format=gnu", "-P", "-cf", "-", "-C", source.toString(), "--transform", "s,^,../,", "sub/run.sh");
+		Path target = work.resolve("target");
+		try {
+			SSHTar.extract(new ByteArrayInputStream(archive), target);
+			fail("entry ../sub/run.sh extracted");
+		} catch (IOException e) {
+			// expected
+		}
+		assertFalse(Files.exists(work.resolve("sub")));
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsCorruptHeaders() throws IOException {
+		ByteArrayOutputStream archive = new ByteArrayOutputStream();
+		SSHTar.write(source, names(source), archive);
+		byte[] bytes = archive.toByteArray();
+		bytes[10] ^= 1;
+		SSHTar.extract(new ByteArrayInputStream(bytes), work.resolve("target"));
+	}
+
+	private static void assertSameTree(Path expected, Path actual) throws IOException {
+		List<Path> paths = paths(expected);
+		assertEquals(paths, paths(actual));
+		for(Path path : paths) {
+			Path e = expected.resolve(path);
+			Path a = actual.resolve(path);
+			assertEquals(path.toString(), Files.isDirectory(e), Files.isDirectory(a));
+			if(!Files.isDirectory(e)) {
+				assertArrayEquals(path.toString(), Files.readAllBytes(e), Files.readAllBytes(a));
+			}
+			assertEquals(path.toString(), Files.getLastModifiedTime(e), Files.getLastModifiedTime(a));
+			if(POSIX) {
+				assertEquals(path.toString(), Files.getPosixFilePermissions(e), Files.getPosixFilePermissions(a));
+			}
+		}
+	}
+
+	/**
+	 * @return paths below a directory relative to it, parents first
+	 */
+	private static List<Path> paths(Path root) throws IOException {
+		try (Stream<Path> walk = Files.walk(root)) {
+			return walk.filter(path -> !path.equals(root)).map(root::relativize).sorted().collect(Collectors.toList());
+		}
+	}
+
+	private static List<String> names(Path root) throws IOException {
+		return paths(root).stream().map(path -> path.toString().replace('\\', '/')).collect(Collectors.toList());
+	}
+
+	private static boolean hasTar() {
+		try {
+			return new String(run(null, "tar", "--version"), "UTF-8").contains("GNU tar");
+		} catch (IOException | InterruptedException e) {
+			return false;
+		}
+	}
+
+	private static byte[] run(byte[] stdin, String... cmd) throws IOException, InterruptedException {
+		Process process = new ProcessBuilder(cmd).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+		Thread writer = new Thread(() -> {
+			try (OutputStream out = process.getOutputStream()) {
+				if(stdin != null) {
+					out.write(stdin);
+				}
+			} catch (IOException e) {
+				// reported by the exit status
+			}
+		});
+		writer.start();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (InputStream in = process.getInputStream()) {
+			byte[] buf = new byte[64 * 1024];
+			int n;
+			while((n = in.read(buf)) >= 0) {
+				out.write(buf, 0, n);
+			}
+		}
+		writer.join();
+		assertTrue(String.join(" ", cmd) + " failed", process.waitFor() == 0);
+		return out.toByteArray();
+	}
+
+	private static String repeat(char c, int count) {
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+}